@@ -0,0 +1,10 @@
+package com.elmakers.mine.bukkit.data;
+
+/**
+ * An aggregate function that can be computed over a column.
+ * 
+ * @see DataStore#aggregate(DataTable, AggregateFunction, String, String)
+ */
+public enum AggregateFunction {
+    COUNT, MAX, MIN, SUM
+}
@@ -0,0 +1,87 @@
+package com.elmakers.mine.bukkit.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes a filtered read from a single table.
+ * 
+ * Rows must match all conditions- each condition is a column and the value it
+ * must be equal to. Results may be ordered by a single column, and limited to
+ * a page of rows. A query may also select only some columns, in which case
+ * rows will only contain those columns.
+ * 
+ * @author NathanWolf
+ * 
+ * @see DataStore#query(DataTable, DataQuery)
+ */
+public class DataQuery {
+    protected List<String> columns = new ArrayList<String>();
+    protected List<DataField> conditions = new ArrayList<DataField>();
+    protected boolean descending = false;
+    protected int limit = 0;
+    protected int offset = 0;
+    protected String orderBy = null;
+
+    public DataQuery() {}
+
+    public void addColumn(String columnName) {
+        columns.add(columnName);
+    }
+
+    public void addCondition(DataField condition) {
+        conditions.add(condition);
+    }
+
+    /**
+     * Get the columns to select.
+     * 
+     * @return The column names, or an empty list to select all columns
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public List<DataField> getConditions() {
+        return conditions;
+    }
+
+    /**
+     * Get the maximum number of rows to return.
+     * 
+     * @return The row limit, or 0 for no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the column to order results by.
+     * 
+     * @return The column name, or null if results are not ordered
+     */
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    public void setOrderBy(String orderBy, boolean descending) {
+        this.orderBy = orderBy;
+        this.descending = descending;
+    }
+}
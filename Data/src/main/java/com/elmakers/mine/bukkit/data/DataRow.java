@@ -1,6 +1,7 @@
 package com.elmakers.mine.bukkit.data;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Logger;
@@ -80,6 +81,29 @@ public class DataRow {
         return fields;
     }
 
+    /**
+     * Take a copy of the values in this row, in field order.
+     * 
+     * This can be used to tell if an object has changed since it was last
+     * written. Dates and byte arrays are copied, so that changes made to
+     * them later show up as differences.
+     * 
+     * @return A copy of this row's values, to compare with Arrays.deepEquals
+     */
+    public Object[] copyValues() {
+        Object[] values = new Object[fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            Object value = fields.get(i).getValue();
+            if (value instanceof byte[]) {
+                value = ((byte[]) value).clone();
+            } else if (value instanceof Date) {
+                value = new Date(((Date) value).getTime());
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
     /**
      * Get the table for this row.
      * 
@@ -90,6 +114,22 @@ public class DataRow {
     }
 
     public boolean isMigrationRequired(DataRow storeTableHeader) {
+        return getMissingFields(storeTableHeader).size() > 0;
+    }
+
+    /**
+     * Find the fields in this row that are not present in a stored table.
+     * 
+     * This is used to work out which columns need to be added to a table
+     * during migration.
+     * 
+     * @param storeTableHeader The header row of the table as it currently
+     *            exists in the store
+     * 
+     * @return A list of fields missing from the store, empty if none
+     */
+    public List<DataField> getMissingFields(DataRow storeTableHeader) {
+        List<DataField> missingFields = new ArrayList<DataField>();
         for (DataField field : fields) {
             DataField storeField = storeTableHeader.getField(field.getName());
 
@@ -98,10 +138,10 @@ public class DataRow {
             // not sufficient ^ Will always auto-migrate.
 
             if (storeField == null) {
-                return true;
+                missingFields.add(field);
             }
         }
 
-        return false;
+        return missingFields;
     }
 }
@@ -0,0 +1,424 @@
+package com.elmakers.mine.bukkit.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.elmakers.com.bukkit.data.exception.InvalidDataException;
+
+/**
+ * Packs a set of data rows into a single compact byte array, and back.
+ * 
+ * Data is stored a column at a time. Integer values are stored as variable
+ * length deltas from the previous value in their column, strings are stored
+ * once per column and then referred to by index, and whole-number doubles
+ * are stored like integers. Larger encodings are also deflated, if that
+ * makes them smaller.
+ * 
+ * Column names are stored along with the data, so rows can be read back
+ * after columns have been added or removed.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class DataRowEncoder {
+    protected static final int COMPRESS_THRESHOLD = 64;
+    protected static final byte DEFLATED = 1;
+    protected static final byte VERSION = 1;
+
+    // Doubles whose magnitude is below this are stored as integers
+    protected static final double WHOLE_LIMIT = (double) (1L << 52);
+
+    protected ByteArrayOutputStream out;
+    protected byte[] in;
+    protected int position;
+
+    protected DataRowEncoder() {}
+
+    /**
+     * Encode a list of rows.
+     * 
+     * Only data values are stored- a row's object and list fields are
+     * ignored.
+     * 
+     * @param rows The rows to encode
+     * 
+     * @return The encoded rows
+     */
+    public static byte[] encode(List<DataRow> rows) {
+        DataRowEncoder encoder = new DataRowEncoder();
+        encoder.out = new ByteArrayOutputStream();
+        encoder.writeRows(rows);
+        byte[] data = encoder.out.toByteArray();
+
+        byte flags = 0;
+        if (data.length > COMPRESS_THRESHOLD) {
+            byte[] compressed = deflate(data);
+            if (compressed.length < data.length) {
+                data = compressed;
+                flags = DEFLATED;
+            }
+        }
+
+        byte[] encoded = new byte[data.length + 2];
+        encoded[0] = VERSION;
+        encoded[1] = flags;
+        System.arraycopy(data, 0, encoded, 2, data.length);
+        return encoded;
+    }
+
+    /**
+     * Decode a list of rows, and add them to a table.
+     * 
+     * @param data The encoded rows
+     * @param table The table to add the rows to
+     * 
+     * @return The decoded rows
+     * 
+     * @throws InvalidDataException If the data is not valid
+     */
+    public static List<DataRow> decode(byte[] data, DataTable table) throws InvalidDataException {
+        if (data.length < 2 || data[0] != VERSION) {
+            throw new InvalidDataException(table, "Unknown row encoding");
+        }
+
+        byte[] body = new byte[data.length - 2];
+        System.arraycopy(data, 2, body, 0, body.length);
+        if ((data[1] & DEFLATED) != 0) {
+            body = inflate(body, table);
+        }
+
+        DataRowEncoder decoder = new DataRowEncoder();
+        decoder.in = body;
+        try {
+            return decoder.readRows(table);
+        } catch (IndexOutOfBoundsException e) {
+            throw new InvalidDataException(table, "Truncated row data");
+        } catch (NegativeArraySizeException e) {
+            throw new InvalidDataException(table, "Invalid row data");
+        }
+    }
+
+    protected static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            compressed.write(buffer, 0, count);
+        }
+        deflater.end();
+        return compressed.toByteArray();
+    }
+
+    protected static byte[] inflate(byte[] data, DataTable table) throws InvalidDataException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new InvalidDataException(table, "Truncated row data");
+                }
+                inflated.write(buffer, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new InvalidDataException(table, null, e);
+        } finally {
+            inflater.end();
+        }
+        return inflated.toByteArray();
+    }
+
+    protected void writeRows(List<DataRow> rows) {
+        // Collect the columns from all rows, in case some are missing fields
+        List<String> names = new ArrayList<String>();
+        List<DataType> types = new ArrayList<DataType>();
+        for (DataRow row : rows) {
+            for (DataField field : row.getFields()) {
+                if (!names.contains(field.getName()) && isEncoded(field.getType())) {
+                    names.add(field.getName());
+                    types.add(field.getType());
+                }
+            }
+        }
+
+        writeVarLong(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            writeString(names.get(i));
+            writeString(types.get(i).name());
+        }
+
+        writeVarLong(rows.size());
+        Object[] values = new Object[rows.size()];
+        for (int i = 0; i < names.size(); i++) {
+            for (int r = 0; r < values.length; r++) {
+                DataField field = rows.get(r).get(names.get(i));
+                values[r] = field == null ? null : field.getValue();
+            }
+            writeColumn(types.get(i), values);
+        }
+    }
+
+    protected void writeColumn(DataType type, Object[] values) {
+        // Null flags, as a bitmap- or a single 0 if there are none
+        byte[] nulls = new byte[(values.length + 7) / 8];
+        boolean hasNulls = false;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                nulls[i / 8] |= 1 << i % 8;
+                hasNulls = true;
+            }
+        }
+        out.write(hasNulls ? 1 : 0);
+        if (hasNulls) {
+            out.write(nulls, 0, nulls.length);
+        }
+
+        long previous = 0;
+        HashMap<String, Integer> strings = new HashMap<String, Integer>();
+        for (Object value : values) {
+            if (value == null) {
+                continue;
+            }
+
+            switch (type) {
+            case DOUBLE:
+            case FLOAT:
+                double d = ((Number) value).doubleValue();
+                if (d == Math.rint(d) && Math.abs(d) < WHOLE_LIMIT && !(d == 0 && 1 / d < 0)) {
+                    long whole = (long) d;
+                    writeVarLong(zigZag(whole - previous) << 1);
+                    previous = whole;
+                } else {
+                    writeVarLong(1);
+                    writeLong(Double.doubleToLongBits(d));
+                }
+                break;
+            case STRING:
+                String s = value.toString();
+                Integer index = strings.get(s);
+                if (index == null) {
+                    writeVarLong(strings.size());
+                    writeString(s);
+                    strings.put(s, strings.size());
+                } else {
+                    writeVarLong(index);
+                }
+                break;
+            case BLOB:
+                byte[] bytes = (byte[]) value;
+                writeVarLong(bytes.length);
+                out.write(bytes, 0, bytes.length);
+                break;
+            default:
+                long l = toLong(value);
+                writeVarLong(zigZag(l - previous));
+                previous = l;
+                break;
+            }
+        }
+    }
+
+    protected List<DataRow> readRows(DataTable table) throws InvalidDataException {
+        int columnCount = (int) readVarLong();
+        String[] names = new String[columnCount];
+        DataType[] types = new DataType[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            names[i] = readString();
+            String typeName = readString();
+            try {
+                types[i] = DataType.valueOf(typeName);
+            } catch (IllegalArgumentException e) {
+                types[i] = null;
+            }
+            if (!isEncoded(types[i])) {
+                throw new InvalidDataException(table, "Unknown column type in row data: " + typeName);
+            }
+        }
+
+        // Each row takes at least one bit per column
+        int rowCount = (int) readVarLong();
+        if (rowCount < 0 || columnCount > 0 && rowCount > in.length * 8L) {
+            throw new InvalidDataException(table, "Invalid row count in row data: " + rowCount);
+        }
+
+        List<DataRow> rows = new ArrayList<DataRow>(rowCount);
+        for (int r = 0; r < rowCount; r++) {
+            DataRow row = new DataRow(table);
+            rows.add(row);
+            table.addRow(row);
+        }
+
+        Object[] values = new Object[rowCount];
+        for (int i = 0; i < columnCount; i++) {
+            readColumn(types[i], values);
+            for (int r = 0; r < rowCount; r++) {
+                rows.get(r).add(new DataField(names[i], types[i], values[r]));
+            }
+        }
+
+        return rows;
+    }
+
+    protected void readColumn(DataType type, Object[] values) {
+        byte[] nulls = null;
+        if (in[position++] != 0) {
+            nulls = new byte[(values.length + 7) / 8];
+            System.arraycopy(in, position, nulls, 0, nulls.length);
+            position += nulls.length;
+        }
+
+        long previous = 0;
+        List<String> strings = new ArrayList<String>();
+        for (int i = 0; i < values.length; i++) {
+            if (nulls != null && (nulls[i / 8] & 1 << i % 8) != 0) {
+                values[i] = null;
+                continue;
+            }
+
+            switch (type) {
+            case DOUBLE:
+            case FLOAT:
+                long encoded = readVarLong();
+                double d;
+                if ((encoded & 1) == 0) {
+                    previous += unZigZag(encoded >>> 1);
+                    d = previous;
+                } else {
+                    d = Double.longBitsToDouble(readLong());
+                }
+                values[i] = type == DataType.FLOAT ? (Object) (float) d : (Object) d;
+                break;
+            case STRING:
+                int index = (int) readVarLong();
+                if (index == strings.size()) {
+                    strings.add(readString());
+                }
+                values[i] = strings.get(index);
+                break;
+            case BLOB:
+                byte[] bytes = new byte[(int) readVarLong()];
+                System.arraycopy(in, position, bytes, 0, bytes.length);
+                position += bytes.length;
+                values[i] = bytes;
+                break;
+            default:
+                previous += unZigZag(readVarLong());
+                values[i] = fromLong(type, previous);
+                break;
+            }
+        }
+    }
+
+    protected static boolean isEncoded(DataType type) {
+        return type != null && type != DataType.LIST && type != DataType.NULL && type != DataType.OBJECT;
+    }
+
+    protected static long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        if (value instanceof Enum<?>) {
+            return ((Enum<?>) value).ordinal();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        return 0;
+    }
+
+    protected static Object fromLong(DataType type, long value) {
+        switch (type) {
+        case BOOLEAN:
+            return value != 0;
+        case BYTE:
+            return (byte) value;
+        case DATE:
+            return new Date(value);
+        case ENUMERATION:
+        case INTEGER:
+            return (int) value;
+        }
+        return value;
+    }
+
+    protected static long zigZag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    protected static long unZigZag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    protected void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    protected long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[position++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 64);
+        return value;
+    }
+
+    protected void writeLong(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    protected long readLong() {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | in[position++] & 0xFF;
+        }
+        return value;
+    }
+
+    protected void writeString(String s) {
+        try {
+            byte[] bytes = s.getBytes("UTF-8");
+            writeVarLong(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } catch (UnsupportedEncodingException e) {
+            // Every JVM supports UTF-8
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    protected String readString() {
+        int length = (int) readVarLong();
+        String s = "";
+        try {
+            s = new String(in, position, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every JVM supports UTF-8
+            throw new IllegalStateException(e.getMessage());
+        }
+        position += length;
+        return s;
+    }
+}
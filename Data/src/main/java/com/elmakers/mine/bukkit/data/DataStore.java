@@ -1,5 +1,6 @@
 package com.elmakers.mine.bukkit.data;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -36,6 +37,92 @@ public abstract class DataStore {
         this.schema = schema;
     }
 
+    /**
+     * Add a column to an existing table, keeping its data intact.
+     * 
+     * Stores that can't alter tables should return false, in which case the
+     * table will be rebuilt instead.
+     * 
+     * @param tableName The table to add a column to
+     * @param field The column definition to add
+     * 
+     * @return true if success, false if failed or not supported
+     */
+    public boolean addColumn(String tableName, DataField field) {
+        return false;
+    }
+
+    /**
+     * Compute an aggregate over a column, inside of the store.
+     * 
+     * Each row added to the results table has the group value first, if
+     * grouping, and then the aggregate value. Without grouping, a single row
+     * is added.
+     * 
+     * @param results The table to add results to, named for the table to read
+     * @param function The aggregate function to compute
+     * @param columnName The column to aggregate, or null to count rows
+     * @param groupByColumnName The column to group by, or null for no grouping
+     * 
+     * @return true if success, false if failed or not supported
+     */
+    public boolean aggregate(DataTable results, AggregateFunction function, String columnName, String groupByColumnName) {
+        return false;
+    }
+
+    /**
+     * Reserve a block of ids for a table's autogenerated id column.
+     * 
+     * The store keeps track of the next free id for each table, so that ids
+     * can be handed out in blocks without loading the table. A new sequence
+     * is started after the highest id already in the table.
+     * 
+     * @param tableName The table to allocate ids for
+     * @param idColumnName The table's id column, used to start a new sequence
+     * @param blockSize The number of ids to reserve
+     * 
+     * @return The first id of the reserved block, or -1 if failed or not
+     *         supported
+     */
+    public long allocateIds(String tableName, String idColumnName, int blockSize) {
+        return -1;
+    }
+
+    /**
+     * Fill in a column for any rows where it is not yet set.
+     * 
+     * This works in batches, so a large table won't lock up the store. Since
+     * only rows that don't have a value yet are touched, an interrupted
+     * backfill will pick up where it left off the next time it is run.
+     * 
+     * @param tableName The table to update
+     * @param columnName The column to fill in
+     * @param expression A store-specific expression used to compute the value
+     * @param batchSize The maximum number of rows to update at once
+     * 
+     * @return The number of rows updated, or -1 on failure
+     */
+    public int backfill(String tableName, String columnName, String expression, int batchSize) {
+        return -1;
+    }
+
+    /**
+     * Start a transaction.
+     * 
+     * Everything written to the store until commit() or rollback() is called
+     * will be applied all at once, or not at all.
+     * 
+     * Transactions may be nested- only the outermost commit() or rollback()
+     * actually ends the transaction. A nested rollback() marks the whole
+     * transaction as rollback-only, so the outermost commit() will roll back
+     * instead, and return false.
+     * 
+     * @return true if success, false if failed or not supported
+     */
+    public boolean beginTransaction() {
+        return false;
+    }
+
     /**
      * Clear a table, except for the objects contained in the specified
      * DataTable
@@ -64,6 +151,18 @@ public abstract class DataStore {
      */
     public abstract boolean clearIds(DataTable table, List<Object> ids);
 
+    /**
+     * Commit the current transaction.
+     * 
+     * @see #beginTransaction()
+     * 
+     * @return true if success, false if failed, rolled back or there is no
+     *         transaction
+     */
+    public boolean commit() {
+        return false;
+    }
+
     /**
      * Connect to the data store represented by this store's schema
      * 
@@ -71,7 +170,22 @@ public abstract class DataStore {
      */
     public abstract boolean connect();
 
-    public void copyTable(String sourceTable, String destinationTable) {}
+    /**
+     * Copy data from one table to another, inside of the store.
+     * 
+     * Both tables must already exist. Only the specified columns are copied,
+     * so this can be used to move data between two different versions of a
+     * table.
+     * 
+     * @param sourceTable The table to copy data from
+     * @param destinationTable The table to copy data into
+     * @param columnNames The columns to copy, which must exist in both tables
+     * 
+     * @return true if success, false if failed or not supported
+     */
+    public boolean copyTable(String sourceTable, String destinationTable, List<String> columnNames) {
+        return false;
+    }
 
     /**
      * Will attempt to create a table- check to see if the table exists before
@@ -87,6 +201,19 @@ public abstract class DataStore {
      */
     public abstract boolean create(DataTable table);
 
+    /**
+     * Create an index on a single column of a table, if it doesn't already
+     * exist.
+     * 
+     * @param tableName The table to index
+     * @param columnName The column to index
+     * 
+     * @return true if the index exists, false if failed or not supported
+     */
+    public boolean createIndex(String tableName, String columnName) {
+        return false;
+    }
+
     /**
      * Disconnect from the connected store
      */
@@ -95,11 +222,26 @@ public abstract class DataStore {
     /**
      * Completely drop a table, allowing it to be re-created.
      * 
+     * This also resets the table's id sequence, if it has one.
+     * 
      * @param tableName the name of the table to drop
      * @return true on success
      */
     public abstract boolean drop(String tableName);
 
+    /**
+     * Execute a raw, store-specific statement.
+     * 
+     * This is used by migration steps to run custom statements.
+     * 
+     * @param statement The statement to execute
+     * 
+     * @return true if success, false if failed or not supported
+     */
+    public boolean execute(String statement) {
+        return false;
+    }
+
     /**
      * Return the table header (column definitions) without querying the table
      * for data.
@@ -142,6 +284,134 @@ public abstract class DataStore {
      */
     public abstract boolean load(DataTable table);
 
+    /**
+     * Migrate a table to match a new table definition, keeping its data.
+     * 
+     * If the table does not exist, it is created. Missing columns are added in
+     * place when possible. If that can't be done (for instance, if an id
+     * column changed), the table is rebuilt, and data in the columns common to
+     * both definitions is copied over.
+     * 
+     * @param table The new table definition
+     * 
+     * @return true if success, false if the table could not be migrated
+     */
+    public boolean migrate(DataTable table) {
+        String tableName = table.getName();
+        if (!tableExists(tableName)) {
+            return create(table);
+        }
+
+        DataTable currentTable = getTableHeader(tableName);
+        List<DataField> missingFields = table.getHeader().getMissingFields(currentTable.getHeader());
+        if (missingFields.size() == 0) {
+            return true;
+        }
+
+        boolean rebuild = false;
+        for (DataField field : missingFields) {
+            if (field.isIdField()) {
+                rebuild = true;
+                break;
+            }
+        }
+
+        if (!rebuild) {
+            for (DataField field : missingFields) {
+                if (!addColumn(tableName, field)) {
+                    rebuild = true;
+                    break;
+                }
+            }
+        }
+
+        if (!rebuild) {
+            logStoreAccess("Persistence: added %d columns to " + schema + "." + tableName, missingFields.size());
+            return true;
+        }
+
+        return rebuild(table);
+    }
+
+    /**
+     * Load the rows of a table that match a query.
+     * 
+     * The filtering, ordering and paging is done by the store, so only the
+     * matching rows are read. Assumes that the table already exists.
+     * 
+     * @param table The table to load rows into
+     * @param query The conditions, ordering and limit to apply
+     * 
+     * @return true if success, false if failed or not supported
+     */
+    public boolean query(DataTable table, DataQuery query) {
+        return false;
+    }
+
+    /**
+     * Rebuild a table with a new definition, copying over existing data.
+     * 
+     * The old table is kept as a backup if the copy fails.
+     * 
+     * @param table The new table definition
+     * 
+     * @return true if success
+     */
+    protected boolean rebuild(DataTable table) {
+        String tableName = table.getName();
+        String backupTableName = tableName + "_migrate";
+
+        DataRow currentHeader = getTableHeader(tableName).getHeader();
+        List<String> columnNames = new ArrayList<String>();
+        for (DataField field : table.getHeader().getFields()) {
+            if (currentHeader.getField(field.getName()) != null) {
+                columnNames.add(field.getName());
+            }
+        }
+
+        drop(backupTableName);
+        if (!renameTable(tableName, backupTableName)) {
+            return false;
+        }
+
+        if (!create(table)) {
+            renameTable(backupTableName, tableName);
+            return false;
+        }
+
+        if (columnNames.size() > 0 && !copyTable(backupTableName, tableName, columnNames)) {
+            log.warning("Persistence: Failed to copy data while migrating " + schema + "." + tableName + ", old data is in " + backupTableName);
+            return false;
+        }
+
+        drop(backupTableName);
+        logStoreAccess("Persistence: rebuilt table " + schema + "." + tableName);
+        return true;
+    }
+
+    /**
+     * Rename a table.
+     * 
+     * @param tableName The current name of the table
+     * @param newTableName The new name for the table
+     * 
+     * @return true if success, false if failed or not supported
+     */
+    public boolean renameTable(String tableName, String newTableName) {
+        return false;
+    }
+
+    /**
+     * Discard everything written since the outermost beginTransaction().
+     * 
+     * @see #beginTransaction()
+     * 
+     * @return true if success, false if failed or there is no transaction
+     */
+    public boolean rollback() {
+        return false;
+    }
+
     /**
      * Save a table to the data store.
      * 
@@ -39,6 +39,21 @@ public class DataTable {
         return rows.get(0);
     }
 
+    /**
+     * Take a copy of the values in every row of this table.
+     * 
+     * @return A copy of each row's values, in row order
+     * 
+     * @see DataRow#copyValues()
+     */
+    public Object[] copyValues() {
+        Object[] values = new Object[rows.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rows.get(i).copyValues();
+        }
+        return values;
+    }
+
     public List<String> getIdFieldNames() {
         return idFieldNames;
     }
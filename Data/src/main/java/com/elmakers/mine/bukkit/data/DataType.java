@@ -4,7 +4,7 @@ import java.util.Date;
 import java.util.List;
 
 public enum DataType {
-    BOOLEAN, BYTE, DATE, DOUBLE, ENUMERATION, FLOAT, INTEGER, LIST, LONG, NULL, OBJECT, STRING;
+    BLOB, BOOLEAN, BYTE, DATE, DOUBLE, ENUMERATION, FLOAT, INTEGER, LIST, LONG, NULL, OBJECT, STRING;
 
     public static Object convertValue(Object value, Class<?> targetClass) {
         if (value == null) {
@@ -152,6 +152,8 @@ public enum DataType {
     // TODO: SqlDataType class?
     public static int getSqlType(DataType dataType) {
         switch (dataType) {
+        case BLOB:
+            return java.sql.Types.BLOB;
         case BOOLEAN:
             return java.sql.Types.BOOLEAN;
         case DATE:
@@ -178,6 +180,8 @@ public enum DataType {
             sqlType = DataType.ENUMERATION;
         } else if (List.class.isAssignableFrom(fieldType)) {
             sqlType = DataType.LIST;
+        } else if (byte[].class.isAssignableFrom(fieldType)) {
+            sqlType = DataType.BLOB;
         } else if (Enum.class.isAssignableFrom(fieldType)) {
             sqlType = DataType.ENUMERATION;
         } else if (Date.class.isAssignableFrom(fieldType)) {
@@ -234,6 +238,12 @@ public enum DataType {
         DataType dataType = DataType.NULL;
 
         switch (sqlType) {
+        case java.sql.Types.BINARY:
+            dataType = DataType.BLOB;
+            break;
+        case java.sql.Types.BLOB:
+            dataType = DataType.BLOB;
+            break;
         case java.sql.Types.BOOLEAN:
             dataType = DataType.BOOLEAN;
             break;
@@ -261,6 +271,9 @@ public enum DataType {
         case java.sql.Types.JAVA_OBJECT:
             dataType = DataType.OBJECT;
             break;
+        case java.sql.Types.LONGVARBINARY:
+            dataType = DataType.BLOB;
+            break;
         case java.sql.Types.LONGNVARCHAR:
             dataType = DataType.STRING;
             break;
@@ -291,6 +304,9 @@ public enum DataType {
         case java.sql.Types.TIMESTAMP:
             dataType = DataType.DATE;
             break;
+        case java.sql.Types.VARBINARY:
+            dataType = DataType.BLOB;
+            break;
         case java.sql.Types.VARCHAR:
             dataType = DataType.STRING;
             break;
@@ -1,5 +1,6 @@
 package com.elmakers.mine.bukkit.data.sql;
 
+import java.sql.Blob;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -50,6 +51,12 @@ public class SqlDataField extends DataField {
         case STRING:
             ps.setString(fieldIndex, (String) value);
             return;
+        case BLOB:
+            if (value instanceof byte[]) {
+                ps.setBytes(fieldIndex, (byte[]) value);
+                return;
+            }
+            break;
         case ENUMERATION:
             if (valueClass.isEnum()) {
                 Enum<?> enumValue = (Enum<?>) value;
@@ -76,6 +83,13 @@ public class SqlDataField extends DataField {
 
         try {
             value = rs.getObject(index);
+
+            // Some drivers return a Blob handle, which is only valid while
+            // the ResultSet is open
+            if (value instanceof Blob) {
+                Blob blob = (Blob) value;
+                value = blob.getBytes(1, (int) blob.length());
+            }
         } catch (SQLException ex) {
             log.warning("Persistence: error creating SQLDataRow: " + ex.getMessage());
         }
@@ -5,9 +5,12 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
+import com.elmakers.mine.bukkit.data.AggregateFunction;
 import com.elmakers.mine.bukkit.data.DataField;
+import com.elmakers.mine.bukkit.data.DataQuery;
 import com.elmakers.mine.bukkit.data.DataRow;
 import com.elmakers.mine.bukkit.data.DataStore;
 import com.elmakers.mine.bukkit.data.DataTable;
@@ -22,6 +25,7 @@ import com.elmakers.mine.bukkit.data.DataType;
 public abstract class SqlStore extends DataStore {
     protected static boolean driversLoaded = false;
     protected static boolean logSqlStatements = false;
+    protected static final String sequenceTableName = "_sequence";
 
     public static void logSqlStatement(String statement) {
         if (logSqlStatements) {
@@ -30,11 +34,180 @@ public abstract class SqlStore extends DataStore {
     }
 
     protected Connection connection = null;
+    protected boolean rollbackOnly = false;
+    protected boolean sequenceTableCreated = false;
+    protected int transactionDepth = 0;
 
     public SqlStore(String schema) {
         super(schema);
     }
 
+    @Override
+    public boolean addColumn(String tableName, DataField field) {
+        String alterSql = "ALTER TABLE \"" + tableName + "\" ADD COLUMN \"" + field.getName() + "\"";
+        String typeName = getTypeName(field.getType());
+        if (typeName != null) {
+            alterSql += " " + typeName;
+        }
+
+        if (!execute(alterSql)) {
+            return false;
+        }
+
+        logStoreAccess("Persistence: Added column " + field.getName() + " to " + schema + "." + tableName);
+        return true;
+    }
+
+    @Override
+    public boolean aggregate(DataTable results, AggregateFunction function, String columnName, String groupByColumnName) {
+        String tableName = results.getName();
+        String valueSql = columnName == null ? "*" : "\"" + columnName + "\"";
+        String aggregateSql = "SELECT ";
+        if (groupByColumnName != null) {
+            aggregateSql += "\"" + groupByColumnName + "\", ";
+        }
+        aggregateSql += function.name() + "(" + valueSql + ") FROM \"" + tableName + "\"";
+        if (groupByColumnName != null) {
+            aggregateSql += " GROUP BY \"" + groupByColumnName + "\"";
+        }
+
+        int rowCount = load(results, aggregateSql);
+        logStoreAccess("Persistence: aggregated %d rows from " + schema + "." + tableName, rowCount);
+
+        return rowCount >= 0;
+    }
+
+    @Override
+    public synchronized long allocateIds(String tableName, String idColumnName, int blockSize) {
+        if (!checkSequenceTable()) {
+            return -1;
+        }
+
+        String updateSql = "UPDATE \"" + sequenceTableName + "\" SET \"nextId\" = \"nextId\" + ? WHERE \"name\" = ?";
+        String selectSql = "SELECT \"nextId\" FROM \"" + sequenceTableName + "\" WHERE \"name\" = ?";
+        String maxSql = "SELECT MAX(\"" + idColumnName + "\") FROM \"" + tableName + "\"";
+        String insertSql = "INSERT INTO \"" + sequenceTableName + "\" (\"name\", \"nextId\") VALUES (?, ?)";
+        long firstId = 1;
+
+        try {
+            PreparedStatement updateStatement = connection.prepareStatement(updateSql);
+            updateStatement.setInt(1, blockSize);
+            updateStatement.setString(2, tableName);
+            logSqlStatement(updateSql);
+            if (updateStatement.executeUpdate() > 0) {
+                PreparedStatement selectStatement = connection.prepareStatement(selectSql);
+                selectStatement.setString(1, tableName);
+                logSqlStatement(selectSql);
+                ResultSet rs = selectStatement.executeQuery();
+                if (rs.next()) {
+                    firstId = rs.getLong(1) - blockSize;
+                }
+                rs.close();
+                return firstId;
+            }
+
+            // This is a new sequence, start it after any existing data
+            if (tableExists(tableName)) {
+                PreparedStatement maxStatement = connection.prepareStatement(maxSql);
+                logSqlStatement(maxSql);
+                ResultSet rs = maxStatement.executeQuery();
+                if (rs.next()) {
+                    firstId = rs.getLong(1) + 1;
+                }
+                rs.close();
+            }
+
+            PreparedStatement insertStatement = connection.prepareStatement(insertSql);
+            insertStatement.setString(1, tableName);
+            insertStatement.setLong(2, firstId + blockSize);
+            logSqlStatement(insertSql);
+            insertStatement.execute();
+        } catch (SQLException ex) {
+            log.warning("Persistence: Error allocating ids for " + tableName + ": " + ex.getMessage());
+            return -1;
+        }
+
+        logStoreAccess("Persistence: allocated %d ids for " + schema + "." + tableName, blockSize);
+
+        return firstId;
+    }
+
+    @Override
+    public int backfill(String tableName, String columnName, String expression, int batchSize) {
+        String countSql = "SELECT COUNT(*) FROM \"" + tableName + "\" WHERE \"" + columnName + "\" IS NULL";
+        String updateSql = getBackfillSql(tableName, columnName, expression, batchSize);
+        int remaining = 0;
+        int rowCount = 0;
+
+        try {
+            PreparedStatement countStatement = connection.prepareStatement(countSql);
+            logSqlStatement(countSql);
+            ResultSet rs = countStatement.executeQuery();
+            if (rs.next()) {
+                remaining = rs.getInt(1);
+            }
+            rs.close();
+
+            // Each batch is committed on its own, so progress is kept if we
+            // are interrupted. The pass limit makes sure an expression that
+            // evaluates to null can't keep us here forever.
+            int maxPasses = remaining / batchSize + 1;
+            PreparedStatement updateStatement = connection.prepareStatement(updateSql);
+            for (int pass = 0; pass < maxPasses; pass++) {
+                logSqlStatement(updateSql);
+                int updated = updateStatement.executeUpdate();
+                rowCount += updated;
+                if (updated < batchSize) {
+                    break;
+                }
+            }
+        } catch (SQLException ex) {
+            log.warning("Persistence: Error backfilling " + tableName + "." + columnName + ": " + ex.getMessage());
+            log.info(updateSql);
+            return -1;
+        }
+
+        logStoreAccess("Persistence: backfilled %d rows in " + schema + "." + tableName, rowCount);
+
+        return rowCount;
+    }
+
+    @Override
+    public boolean beginTransaction() {
+        if (transactionDepth > 0) {
+            transactionDepth++;
+            return true;
+        }
+
+        try {
+            connection.setAutoCommit(false);
+        } catch (SQLException ex) {
+            log.warning("Persistence: Error starting transaction: " + ex.getMessage());
+            return false;
+        }
+
+        logSqlStatement("BEGIN");
+        transactionDepth = 1;
+        rollbackOnly = false;
+        return true;
+    }
+
+    protected boolean checkSequenceTable() {
+        if (sequenceTableCreated) {
+            return true;
+        }
+
+        if (!tableExists(sequenceTableName)) {
+            String createSql = "CREATE TABLE \"" + sequenceTableName + "\" (\"name\" " + getTypeName(DataType.STRING) + ", \"nextId\" " + getTypeName(DataType.LONG) + ", PRIMARY KEY (\"name\"))";
+            if (!execute(createSql)) {
+                return false;
+            }
+        }
+
+        sequenceTableCreated = true;
+        return true;
+    }
+
     @Override
     public boolean clear(DataTable table) {
         String deleteSql = "DELETE FROM \"" + table.getName() + "\"";
@@ -109,6 +282,34 @@ public abstract class SqlStore extends DataStore {
         return true;
     }
 
+    @Override
+    public boolean commit() {
+        if (transactionDepth <= 0) {
+            return false;
+        }
+        if (transactionDepth > 1) {
+            transactionDepth--;
+            return !rollbackOnly;
+        }
+        if (rollbackOnly) {
+            rollback();
+            return false;
+        }
+
+        try {
+            connection.commit();
+            connection.setAutoCommit(true);
+        } catch (SQLException ex) {
+            log.warning("Persistence: Error committing transaction: " + ex.getMessage());
+            rollback();
+            return false;
+        }
+
+        logSqlStatement("COMMIT");
+        transactionDepth = 0;
+        return true;
+    }
+
     @Override
     public boolean connect() {
         if (connection != null) {
@@ -151,6 +352,25 @@ public abstract class SqlStore extends DataStore {
         return isConnected() && onConnect();
     }
 
+    @Override
+    public boolean copyTable(String sourceTable, String destinationTable, List<String> columnNames) {
+        String columnList = "";
+        for (String columnName : columnNames) {
+            if (columnList.length() > 0) {
+                columnList += ", ";
+            }
+            columnList += "\"" + columnName + "\"";
+        }
+
+        String copySql = "INSERT INTO \"" + destinationTable + "\" (" + columnList + ") SELECT " + columnList + " FROM \"" + sourceTable + "\"";
+        if (!execute(copySql)) {
+            return false;
+        }
+
+        logStoreAccess("Persistence: Copied " + schema + "." + sourceTable + " to " + destinationTable);
+        return true;
+    }
+
     @Override
     public boolean create(DataTable table) {
         String tableName = table.getName();
@@ -197,6 +417,22 @@ public abstract class SqlStore extends DataStore {
         return true;
     }
 
+    @Override
+    public boolean createIndex(String tableName, String columnName) {
+        String indexName = getIndexName(tableName, columnName);
+        if (indexExists(tableName, indexName)) {
+            return true;
+        }
+
+        String createSql = "CREATE INDEX \"" + indexName + "\" ON \"" + tableName + "\" (\"" + columnName + "\")";
+        if (!execute(createSql)) {
+            return false;
+        }
+
+        logStoreAccess("Persistence: Created index " + schema + "." + indexName);
+        return true;
+    }
+
     @Override
     public void disconnect() {
         if (connection != null) {
@@ -207,6 +443,8 @@ public abstract class SqlStore extends DataStore {
             }
         }
         connection = null;
+        transactionDepth = 0;
+        rollbackOnly = false;
     }
 
     @Override
@@ -224,17 +462,118 @@ public abstract class SqlStore extends DataStore {
             }
             logStoreAccess("Dropped table " + schema + "." + tableName);
         }
+
+        if (tableExists(sequenceTableName)) {
+            String resetSql = "DELETE FROM \"" + sequenceTableName + "\" WHERE \"name\" = ?";
+            try {
+                PreparedStatement ps = connection.prepareStatement(resetSql);
+                ps.setString(1, tableName);
+                logSqlStatement(resetSql);
+                ps.execute();
+            } catch (SQLException ex) {
+                log.warning("Persistence: error resetting id sequence: " + ex.getMessage());
+                log.info(resetSql);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean execute(String statement) {
+        try {
+            PreparedStatement ps = connection.prepareStatement(statement);
+            logSqlStatement(statement);
+            ps.execute();
+        } catch (SQLException ex) {
+            log.warning("Persistence: Error executing statement: " + ex.getMessage());
+            log.info(statement);
+            return false;
+        }
+
         return true;
     }
 
+    /**
+     * Build a statement that fills in a single batch of rows for a backfill.
+     * 
+     * The default uses SQLite's rowid- override this for other stores.
+     * 
+     * @param tableName The table to update
+     * @param columnName The column to fill in
+     * @param expression The SQL expression for the new value
+     * @param batchSize The maximum number of rows to update
+     * 
+     * @return An UPDATE statement
+     */
+    protected String getBackfillSql(String tableName, String columnName, String expression, int batchSize) {
+        return "UPDATE \"" + tableName + "\" SET \"" + columnName + "\" = " + expression + " WHERE rowid IN (SELECT rowid FROM \"" + tableName + "\" WHERE \"" + columnName + "\" IS NULL LIMIT " + batchSize + ")";
+    }
+
+    /**
+     * Build a query that returns a row if an index exists.
+     * 
+     * The default uses SQLite's master table- override this for other stores.
+     * 
+     * @param tableName The indexed table
+     * @param indexName The name of the index
+     * 
+     * @return A SELECT statement
+     */
+    protected String getIndexExistsSql(String tableName, String indexName) {
+        return "SELECT name FROM \"" + getMasterTableName() + "\" WHERE type='index' AND name='" + indexName + "'";
+    }
+
+    protected String getIndexName(String tableName, String columnName) {
+        return tableName + "_" + columnName;
+    }
+
     public abstract String getConnectionString(String schema, String user, String password);
 
     public abstract String getDriverClassName();
 
+    /**
+     * Build the LIMIT clause for a query.
+     * 
+     * The default uses SQLite's syntax- override this for other stores.
+     * 
+     * @param limit The maximum number of rows, or 0 for no limit
+     * @param offset The number of rows to skip
+     * 
+     * @return The clause to append to a SELECT statement, possibly empty
+     */
+    protected String getLimitSql(int limit, int offset) {
+        if (limit <= 0 && offset <= 0) {
+            return "";
+        }
+        // SQLite treats a negative limit as no limit
+        String limitSql = " LIMIT " + (limit > 0 ? limit : -1);
+        if (offset > 0) {
+            limitSql += " OFFSET " + offset;
+        }
+        return limitSql;
+    }
+
     public abstract String getMasterTableName();
 
     public abstract String getTypeName(DataType dataType);
 
+    protected boolean indexExists(String tableName, String indexName) {
+        String checkQuery = getIndexExistsSql(tableName, indexName);
+        boolean indexExists = false;
+        try {
+            PreparedStatement ps = connection.prepareStatement(checkQuery);
+            logSqlStatement(checkQuery);
+            ResultSet rs = ps.executeQuery();
+            indexExists = rs.next();
+            rs.close();
+        } catch (SQLException ex) {
+            log.severe("Persistence: Error getting index data: " + ex.getMessage());
+            log.info(checkQuery);
+            return false;
+        }
+        return indexExists;
+    }
+
     public boolean isConnected() {
         boolean isClosed = true;
         try {
@@ -260,9 +599,18 @@ public abstract class SqlStore extends DataStore {
     }
 
     protected int load(DataTable table, String sqlQuery) {
+        return load(table, sqlQuery, new ArrayList<DataField>());
+    }
+
+    protected int load(DataTable table, String sqlQuery, List<DataField> parameters) {
         int rowCount = 0;
         try {
             PreparedStatement ps = connection.prepareStatement(sqlQuery);
+            int index = 1;
+            for (DataField parameter : parameters) {
+                SqlDataField.setValue(ps, index, parameter.getValue(), parameter.getType());
+                index++;
+            }
             logSqlStatement(sqlQuery);
             ResultSet rs = ps.executeQuery();
 
@@ -289,6 +637,84 @@ public abstract class SqlStore extends DataStore {
         return true;
     }
 
+    @Override
+    public boolean query(DataTable table, DataQuery query) {
+        String tableName = table.getName();
+        String columnList = "*";
+        if (query.getColumns().size() > 0) {
+            columnList = "";
+            for (String columnName : query.getColumns()) {
+                if (columnList.length() > 0) {
+                    columnList += ", ";
+                }
+                columnList += "\"" + columnName + "\"";
+            }
+        }
+        String selectQuery = "SELECT " + columnList + " FROM \"" + tableName + "\"";
+
+        // Null values can't be compared with =, so they aren't parameters
+        List<DataField> parameters = new ArrayList<DataField>();
+        boolean firstCondition = true;
+        for (DataField condition : query.getConditions()) {
+            selectQuery += firstCondition ? " WHERE " : " AND ";
+            firstCondition = false;
+            if (condition.getValue() == null) {
+                selectQuery += "\"" + condition.getName() + "\" IS NULL";
+            } else {
+                selectQuery += "\"" + condition.getName() + "\" = ?";
+                parameters.add(condition);
+            }
+        }
+
+        if (query.getOrderBy() != null) {
+            selectQuery += " ORDER BY \"" + query.getOrderBy() + "\"";
+            if (query.isDescending()) {
+                selectQuery += " DESC";
+            }
+        }
+
+        selectQuery += getLimitSql(query.getLimit(), query.getOffset());
+
+        int rowCount = load(table, selectQuery, parameters);
+        logStoreAccess("Persistence: queried %d objects from " + schema + "." + tableName, rowCount);
+
+        return rowCount >= 0;
+    }
+
+    @Override
+    public boolean renameTable(String tableName, String newTableName) {
+        String renameSql = "ALTER TABLE \"" + tableName + "\" RENAME TO \"" + newTableName + "\"";
+        return execute(renameSql);
+    }
+
+    @Override
+    public boolean rollback() {
+        if (transactionDepth <= 0) {
+            return false;
+        }
+
+        // A nested rollback can't undo just its own writes- mark the whole
+        // transaction to be rolled back when the outermost level finishes.
+        if (transactionDepth > 1) {
+            transactionDepth--;
+            rollbackOnly = true;
+            return true;
+        }
+        transactionDepth = 0;
+        rollbackOnly = false;
+
+        try {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException ex) {
+            log.warning("Persistence: Error rolling back transaction: " + ex.getMessage());
+            return false;
+        }
+
+        logSqlStatement("ROLLBACK");
+        return true;
+    }
+
     @Override
     public boolean save(DataTable table) {
         int rowCount = 0;
@@ -0,0 +1,200 @@
+package com.elmakers.mine.bukkit.persistence.dao;
+
+import org.bukkit.util.BlockVector;
+
+/**
+ * A mutable, int-based companion to BoundingBox.
+ * 
+ * BoundingBox.contain returns a new BoundingBox (with two new BlockVectors)
+ * each time a box grows- this is used instead when accumulating the bounds of
+ * many blocks, and only creates a BoundingBox when asked for one.
+ * 
+ * Bounds are inclusive, and this is not persisted.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class BlockBounds
+{
+    protected boolean empty = true;
+
+    protected int     maxX;
+
+    protected int     maxY;
+
+    protected int     maxZ;
+
+    protected int     minX;
+
+    protected int     minY;
+
+    protected int     minZ;
+
+    public BlockBounds()
+    {
+
+    }
+
+    /**
+     * Create bounds from a BoundingBox.
+     * 
+     * @param area
+     *            The area to copy, may be null
+     */
+    public BlockBounds(BoundingBox area)
+    {
+        set(area);
+    }
+
+    public void clear()
+    {
+        empty = true;
+    }
+
+    /**
+     * Expand these bounds (if necessary) to contain a point.
+     * 
+     * @param x
+     *            The X coordinate
+     * @param y
+     *            The Y coordinate
+     * @param z
+     *            The Z coordinate
+     * @return true if the bounds grew
+     */
+    public boolean contain(int x, int y, int z)
+    {
+        if (empty)
+        {
+            minX = maxX = x;
+            minY = maxY = y;
+            minZ = maxZ = z;
+            empty = false;
+            return true;
+        }
+
+        boolean grew = false;
+        if (x < minX)
+        {
+            minX = x;
+            grew = true;
+        }
+        else if (x > maxX)
+        {
+            maxX = x;
+            grew = true;
+        }
+        if (y < minY)
+        {
+            minY = y;
+            grew = true;
+        }
+        else if (y > maxY)
+        {
+            maxY = y;
+            grew = true;
+        }
+        if (z < minZ)
+        {
+            minZ = z;
+            grew = true;
+        }
+        else if (z > maxZ)
+        {
+            maxZ = z;
+            grew = true;
+        }
+        return grew;
+    }
+
+    /**
+     * Check to see if these bounds contain a point.
+     * 
+     * @param x
+     *            The X coordinate
+     * @param y
+     *            The Y coordinate
+     * @param z
+     *            The Z coordinate
+     * @return true if the point is inside, false if not or if empty
+     */
+    public boolean contains(int x, int y, int z)
+    {
+        return !empty && x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+
+    public int getMaxX()
+    {
+        return maxX;
+    }
+
+    public int getMaxY()
+    {
+        return maxY;
+    }
+
+    public int getMaxZ()
+    {
+        return maxZ;
+    }
+
+    public int getMinX()
+    {
+        return minX;
+    }
+
+    public int getMinY()
+    {
+        return minY;
+    }
+
+    public int getMinZ()
+    {
+        return minZ;
+    }
+
+    public boolean isEmpty()
+    {
+        return empty;
+    }
+
+    /**
+     * Reset these bounds to match a BoundingBox.
+     * 
+     * @param area
+     *            The area to copy, or null to clear
+     */
+    public void set(BoundingBox area)
+    {
+        if (area == null || area.getMin() == null || area.getMax() == null)
+        {
+            empty = true;
+            return;
+        }
+
+        BlockVector min = area.getMin();
+        BlockVector max = area.getMax();
+        minX = min.getBlockX();
+        minY = min.getBlockY();
+        minZ = min.getBlockZ();
+        maxX = max.getBlockX();
+        maxY = max.getBlockY();
+        maxZ = max.getBlockZ();
+        empty = false;
+    }
+
+    /**
+     * Create a new BoundingBox from these bounds.
+     * 
+     * @return A new BoundingBox, or null if empty
+     */
+    public BoundingBox toBoundingBox()
+    {
+        if (empty)
+        {
+            return null;
+        }
+
+        return new BoundingBox(new BlockVector(minX, minY, minZ), new BlockVector(maxX, maxY, maxZ));
+    }
+}
@@ -6,6 +6,7 @@ import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
+import org.bukkit.util.BlockVector;
 
 import com.elmakers.mine.bukkit.persisted.PersistClass;
 import com.elmakers.mine.bukkit.persisted.PersistField;
@@ -18,16 +19,66 @@ public class BlockData extends Persisted
 
     public static final BlockFace[] SIDES = new BlockFace[] { BlockFace.WEST, BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST };
 
+    /**
+     * The number of world indices that fit in a packed block id.
+     */
+    public static final int         WORLD_INDEX_LIMIT = 1 << 6;
+
+    /**
+     * Get a packed id for a block, unique to its world and position.
+     * 
+     * Ids pack a world index (6 bits), X and Z (25 bits each) and Y (8 bits)
+     * into a long. They won't collide within 16 million blocks of the origin.
+     * Only 64 world indices fit, so indices of worlds that aren't loaded are
+     * recycled past that. They use world indices, which are only valid while
+     * the server is running, so they should never be persisted.
+     * 
+     * @param block
+     *            The block to get an id for
+     * @return The packed block id
+     * @see WorldData#getWorldIndex(String)
+     */
     public static long getBlockId(Block block)
     {
-        return block.getWorld().getName().hashCode() << 28 ^ Integer.valueOf(block.getX()).hashCode() << 13 ^ Integer.valueOf(block.getY()).hashCode() << 7 ^ Integer.valueOf(block.getZ()).hashCode();
+        return getBlockId(WorldData.getWorldIndex(block.getWorld()), block.getX(), block.getY(), block.getZ());
     }
 
     public static long getBlockId(BlockData blockData)
     {
+        LocationData location = blockData.getLocation();
+        if (location != null && location.getWorldData() != null && location.getPosition() != null)
+        {
+            BlockVector position = location.getPosition();
+            return getBlockId(location.getWorldData().getIndex(), position.getBlockX(), position.getBlockY(), position.getBlockZ());
+        }
         return getBlockId(blockData.getBlock());
     }
 
+    public static long getBlockId(int worldIndex, int x, int y, int z)
+    {
+        return (long) worldIndex << 58 | ((long) x & 0x1FFFFFF) << 33 | ((long) z & 0x1FFFFFF) << 8 | y & 0xFF;
+    }
+
+    public static int getBlockX(long blockId)
+    {
+        return (int) (blockId << 6 >> 39);
+    }
+
+    public static int getBlockY(long blockId)
+    {
+        return (int) (blockId & 0xFF);
+    }
+
+    public static int getBlockZ(long blockId)
+    {
+        return (int) (blockId << 31 >> 39);
+    }
+
+    public static int getWorldIndex(long blockId)
+    {
+        return (int) (blockId >>> 58);
+    }
+
     public static BlockFace getReverseFace(BlockFace blockFace)
     {
         switch (blockFace)
@@ -71,6 +122,40 @@ public class BlockData extends Persisted
         materialData = block.getData();
     }
 
+    public BlockData(World world, int x, int y, int z, Material material,
+            byte materialData)
+    {
+        location = new LocationData(world, x, y, z);
+        this.material = material;
+        this.materialData = materialData;
+    }
+
+    /**
+     * Create a block in a world that may not be loaded.
+     * 
+     * @param worldData
+     *            The world the block is in
+     * @param x
+     *            The block's X position
+     * @param y
+     *            The block's Y position
+     * @param z
+     *            The block's Z position
+     * @param material
+     *            The block's material
+     * @param materialData
+     *            The block's data
+     */
+    public BlockData(WorldData worldData, int x, int y, int z,
+            Material material, byte materialData)
+    {
+        location = new LocationData();
+        location.setWorldData(worldData);
+        location.setPosition(new BlockVector(x, y, z));
+        this.material = material;
+        this.materialData = materialData;
+    }
+
     public BlockData(BlockData copy)
     {
         location = copy.location;
@@ -94,7 +179,7 @@ public class BlockData extends Persisted
         if (block == null && location != null)
         {
             Location blockLocation = location.getLocation();
-            if (blockLocation != null)
+            if (blockLocation != null && blockLocation.getWorld() != null)
             {
                 block = blockLocation.getWorld().getBlockAt(blockLocation);
             }
@@ -1,13 +1,17 @@
 package com.elmakers.mine.bukkit.persistence.dao;
 
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.util.BlockVector;
 
+import com.elmakers.mine.bukkit.persisted.FieldEncoding;
 import com.elmakers.mine.bukkit.persisted.PersistClass;
 import com.elmakers.mine.bukkit.persisted.PersistField;
 
@@ -16,39 +20,58 @@ import com.elmakers.mine.bukkit.persisted.PersistField;
  * Implements a Collection of Blocks, for quick getting/putting while iterating
  * over a set or area of blocks.
  * 
- * This stores BlockData objects, which are hashable via their Persisted
- * inheritence, and their LocationData id (which itself has a hash function
- * based on world name and BlockVector's hash function)
+ * Blocks are stored in parallel arrays- a packed block id (see
+ * BlockData.getBlockId), a material id and a data byte per block- instead of
+ * as BlockData objects, which each hold a LocationData, BlockVector and so on.
+ * BlockData objects are only created when iterating, or when this list is
+ * persisted.
+ * 
+ * Block ids are also kept in a primitive set, for fast lookups, and the
+ * bounds of all blocks are tracked in place, so that blocks outside of them
+ * can be rejected without a lookup.
  * 
  * @author NathanWolf
  * 
  */
 @PersistClass(schema = "global", name = "blockList", contained = true)
-public class BlockList implements Collection<BlockData>
+public class BlockList extends AbstractCollection<BlockData>
 {
+    protected static final int INITIAL_CAPACITY = 16;
+
+    protected static final int NO_MATERIAL      = -1;
+
     /**
      * Default serial id, in case you want to serialize this (probably shouldn't
      * though!)
      * 
      * Persist it instead, once I've got that working.
      */
-    private static final long serialVersionUID = 1L;
+    private static final long  serialVersionUID = 1L;
+
+    // Created from bounds when asked for
+    BoundingBox                area;
+
+    // Columns, one entry per block
+    long[]                     blockIds;
+
+    LongHashSet                blockIdSet;
+
+    final BlockBounds          bounds           = new BlockBounds();
 
-    BoundingBox               area;
+    int                        count            = 0;
 
-    HashSet<Long>             blockIdMap;
+    byte[]                     materialData;
 
-    // HashMap backing and easy persistence - need an extra list for this right
-    // now.
-    ArrayList<BlockData>      blockList;
+    int[]                      materials;
 
-    HashSet<BlockData>        blockMap;
+    protected int              passesRemaining  = 1;
 
-    protected int             passesRemaining  = 1;
+    protected int              timeRemaining    = 0;
 
-    protected int             timeRemaining    = 0;
+    protected int              timeToLive       = 0;
 
-    protected int             timeToLive       = 0;
+    // Transient, indexed by world index
+    World[]                    worlds;
 
     public BlockList()
     {
@@ -57,10 +80,16 @@ public class BlockList implements Collection<BlockData>
 
     public BlockList(BlockList other)
     {
-        for (BlockData block : other)
+        if (other.count > 0)
         {
-            BlockData newBlock = new BlockData(block);
-            add(newBlock);
+            ensureCapacity(other.count);
+            System.arraycopy(other.blockIds, 0, blockIds, 0, other.count);
+            System.arraycopy(other.materials, 0, materials, 0, other.count);
+            System.arraycopy(other.materialData, 0, materialData, 0, other.count);
+            count = other.count;
+            worlds = other.worlds.clone();
+            setArea(other.getArea());
+            updateBlockIds();
         }
         timeToLive = other.timeToLive;
         timeRemaining = other.timeRemaining;
@@ -69,56 +98,86 @@ public class BlockList implements Collection<BlockData>
 
     public boolean add(Block block)
     {
-        if (contains(block))
+        // Currently, we don't replace blocks!
+        long blockId = BlockData.getBlockId(block);
+        if (!addBlockId(blockId))
         {
             return true;
         }
 
-        BlockData newBlock = new BlockData(block);
-        return add(newBlock);
+        Material material = block.getType();
+        append(blockId, block.getWorld(), material, block.getData());
+        contain(block.getX(), block.getY(), block.getZ());
+        return true;
     }
 
-    public boolean add(BlockData blockData)
+    /**
+     * Add a block from raw data, such as a stored copy of a BlockList.
+     * 
+     * @param world
+     *            The world the block is in
+     * @param x
+     *            The block's X coordinate
+     * @param y
+     *            The block's Y coordinate
+     * @param z
+     *            The block's Z coordinate
+     * @param materialId
+     *            The block's material id
+     * @param data
+     *            The block's data
+     * @return true
+     * @see #getMaterialId(int)
+     */
+    public boolean add(World world, int x, int y, int z, int materialId,
+            byte data)
     {
-        // First do a sanity check with the map
         // Currently, we don't replace blocks!
-        if (blockMap != null)
+        long blockId = BlockData.getBlockId(WorldData.getWorldIndex(world), x, y, z);
+        if (!addBlockId(blockId))
         {
-            if (blockMap.contains(blockData))
-            {
-                return true;
-            }
-        }
-        else
-        {
-            blockMap = new HashSet<BlockData>();
+            return true;
         }
 
-        if (blockIdMap == null)
-        {
-            blockIdMap = new HashSet<Long>();
-        }
+        append(blockId, world, null, data);
+        materials[count - 1] = materialId;
+        contain(x, y, z);
+        return true;
+    }
 
-        if (blockList == null)
+    /**
+     * Add a copy of a BlockData to this list.
+     * 
+     * The block's world doesn't need to be loaded, as long as its location
+     * knows which world it's in- the world is looked up when it's needed.
+     * 
+     * @param blockData
+     *            The block to add
+     * @return false if the block has no world
+     */
+    @Override
+    public boolean add(BlockData blockData)
+    {
+        LocationData location = blockData.getLocation();
+        World world = blockData.block != null ? blockData.block.getWorld() : location == null ? null : location.getWorld();
+        if (world == null && (location == null || location.getWorldData() == null))
         {
-            blockList = new ArrayList<BlockData>();
+            return false;
         }
-        BlockVector blockLocation = blockData.getLocation().getPosition();
 
-        if (area == null)
-        {
-            area = new BoundingBox(blockLocation, blockLocation);
-        }
-        else
+        // Currently, we don't replace blocks!
+        long blockId = BlockData.getBlockId(blockData);
+        if (!addBlockId(blockId))
         {
-            area = area.contain(blockLocation);
+            return true;
         }
 
-        blockMap.add(blockData);
-        blockIdMap.add(BlockData.getBlockId(blockData));
-        return blockList.add(blockData);
+        append(blockId, world, blockData.getMaterial(), blockData.getMaterialData());
+        contain(BlockData.getBlockX(blockId), BlockData.getBlockY(blockId), BlockData.getBlockZ(blockId));
+        return true;
     }
 
+    @Override
     public boolean addAll(Collection<? extends BlockData> blocks)
     {
         // Iterate to maintain BB area
@@ -146,76 +205,217 @@ public class BlockList implements Collection<BlockData>
         return triggered;
     }
 
+    @Override
     public void clear()
     {
-        if (blockList == null)
+        count = 0;
+        if (blockIdSet != null)
         {
-            return;
+            blockIdSet.clear();
         }
-        blockList.clear();
+        bounds.clear();
+        area = null;
     }
 
     public boolean contains(Block block)
     {
-        if (blockMap == null)
+        if (blockIdSet == null || block == null)
+        {
+            return false;
+        }
+
+        // Reject blocks outside of this list's area before looking them up
+        if (!bounds.contains(block.getX(), block.getY(), block.getZ()))
         {
             return false;
         }
 
-        return blockIdMap.contains(BlockData.getBlockId(block));
+        return blockIdSet.contains(BlockData.getBlockId(block));
     }
 
     public boolean contains(BlockData blockData)
     {
-        if (blockMap == null || blockData == null)
+        if (blockIdSet == null || blockData == null)
         {
             return false;
         }
 
-        return blockMap.contains(blockData);
+        return blockIdSet.contains(BlockData.getBlockId(blockData));
     }
 
-    public boolean contains(Object arg0)
+    /**
+     * Check for a packed block id.
+     * 
+     * @param blockId
+     *            The block id to look for
+     * @return true if this list contains the block
+     * @see BlockData#getBlockId(Block)
+     */
+    public boolean contains(long blockId)
     {
-        // Fall back to map
-        return blockMap.contains(arg0) || blockIdMap.contains(arg0);
+        if (blockIdSet == null)
+        {
+            return false;
+        }
+
+        if (!bounds.contains(BlockData.getBlockX(blockId), BlockData.getBlockY(blockId), BlockData.getBlockZ(blockId)))
+        {
+            return false;
+        }
+
+        return blockIdSet.contains(blockId);
     }
 
-    public boolean containsAll(Collection<?> arg0)
+    @Override
+    public boolean contains(Object arg0)
     {
-        if (blockMap == null)
+        if (arg0 instanceof BlockData)
         {
-            return false;
+            return contains((BlockData) arg0);
+        }
+        if (arg0 instanceof Block)
+        {
+            return contains((Block) arg0);
         }
-        return blockMap.containsAll(arg0);
+        if (arg0 instanceof Long)
+        {
+            return contains(((Long) arg0).longValue());
+        }
+        return false;
+    }
+
+    /**
+     * Create a BlockData view of a single block in this list.
+     * 
+     * A new BlockData is created on each call- changes to it will not be
+     * reflected in this list. The block's world doesn't need to be loaded.
+     * 
+     * @param index
+     *            The index of the block, in the order it was added
+     * @return A new BlockData
+     */
+    public BlockData get(int index)
+    {
+        checkIndex(index);
+        long blockId = blockIds[index];
+        WorldData worldData = WorldData.getIndexedData(BlockData.getWorldIndex(blockId));
+        return new BlockData(worldData, BlockData.getBlockX(blockId), BlockData.getBlockY(blockId), BlockData.getBlockZ(blockId), getMaterial(index), materialData[index]);
     }
 
     // Collection interface- would be great if I could just extend HashSet and
     // have this "just work"
     // TODO : Make that happen in Persistence!
 
-    // For now, this is here to keep the map up to date, and to pass through to
-    // the blockList.
+    // For now, this is here to keep the columns up to date, and to pass through
+    // to the blockList.
 
     @PersistField(contained = true)
     public BoundingBox getArea()
     {
+        if (area == null)
+        {
+            area = bounds.toBoundingBox();
+        }
         return area;
     }
 
-    @PersistField
+    /**
+     * Get the packed id of a single block in this list.
+     * 
+     * @param index
+     *            The index of the block
+     * @return The packed block id
+     */
+    public long getBlockId(int index)
+    {
+        checkIndex(index);
+        return blockIds[index];
+    }
+
+    /**
+     * Create a list of BlockData views of the blocks in this list, for
+     * persistence.
+     * 
+     * The list is stored in a single binary column, rather than a row per
+     * block.
+     * 
+     * @return A new list, or null if this list has never held blocks
+     */
+    @PersistField(contained = true, encoding = FieldEncoding.BINARY)
     public ArrayList<BlockData> getBlockList()
     {
+        if (blockIds == null)
+        {
+            return null;
+        }
+
+        ArrayList<BlockData> blockList = new ArrayList<BlockData>(count);
+        for (int i = 0; i < count; i++)
+        {
+            blockList.add(get(i));
+        }
         return blockList;
     }
 
-    public boolean isEmpty()
+    public Material getMaterial(int index)
+    {
+        checkIndex(index);
+        int materialId = materials[index];
+        return materialId == NO_MATERIAL ? null : Material.getMaterial(materialId);
+    }
+
+    public byte getMaterialData(int index)
+    {
+        checkIndex(index);
+        return materialData[index];
+    }
+
+    /**
+     * Get the raw material id of a single block in this list.
+     * 
+     * @param index
+     *            The index of the block
+     * @return The material id, or -1 if the block has no material
+     */
+    public int getMaterialId(int index)
+    {
+        checkIndex(index);
+        return materials[index];
+    }
+
+    public int getPassesRemaining()
+    {
+        return passesRemaining;
+    }
+
+    public int getTimeRemaining()
+    {
+        return timeRemaining;
+    }
+
+    public int getTimeToLive()
+    {
+        return timeToLive;
+    }
+
+    public World getWorld(int index)
     {
-        if (blockList == null)
+        checkIndex(index);
+        int worldIndex = BlockData.getWorldIndex(blockIds[index]);
+        World world = worlds[worldIndex];
+        if (world == null)
         {
-            return true;
+            // Added while its world wasn't loaded
+            world = WorldData.getIndexedWorld(worldIndex);
+            worlds[worldIndex] = world;
         }
-        return blockList.isEmpty();
+        return world;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return count == 0;
     }
 
     public boolean isExpired()
@@ -223,59 +423,68 @@ public class BlockList implements Collection<BlockData>
         return timeRemaining <= 0;
     }
 
+    @Override
     public Iterator<BlockData> iterator()
     {
-        if (blockList == null)
-        {
-            return null;
-        }
-        return blockList.iterator();
+        return new BlockIterator();
     }
 
+    @Override
     public boolean remove(Object arg0)
     {
         // Note that we never shrink the BB!
-        if (blockList == null)
+        if (!(arg0 instanceof BlockData) || blockIdSet == null)
         {
             return false;
         }
-        return blockList.remove(arg0);
-    }
-
-    public boolean removeAll(Collection<?> arg0)
-    {
-        if (blockList == null)
+        long blockId = BlockData.getBlockId((BlockData) arg0);
+        if (!blockIdSet.contains(blockId))
         {
             return false;
         }
-        return blockList.removeAll(arg0);
-    }
-
-    public boolean retainAll(Collection<?> arg0)
-    {
-        if (blockList == null)
+        for (int i = 0; i < count; i++)
         {
-            return false;
+            if (blockIds[i] == blockId)
+            {
+                removeAt(i);
+                return true;
+            }
         }
-        return blockList.retainAll(arg0);
+        return false;
     }
 
+    /**
+     * Set the area of this list.
+     * 
+     * The area is combined with the bounds of any blocks already in this
+     * list- it may grow, but will never shrink to exclude blocks.
+     * 
+     * @param area
+     *            The area to contain
+     */
     public void setArea(BoundingBox area)
     {
-        this.area = area;
+        this.area = null;
+        if (area != null && area.getMin() != null && area.getMax() != null)
+        {
+            BlockVector min = area.getMin();
+            BlockVector max = area.getMax();
+            bounds.contain(min.getBlockX(), min.getBlockY(), min.getBlockZ());
+            bounds.contain(max.getBlockX(), max.getBlockY(), max.getBlockZ());
+        }
     }
 
     public void setBlockList(ArrayList<BlockData> blockList)
     {
-        this.blockList = blockList;
+        count = 0;
+        blockIds = null;
+        blockIdSet = null;
         if (blockList != null)
         {
-            blockMap = new HashSet<BlockData>();
-            blockIdMap = new HashSet<Long>();
+            ensureCapacity(blockList.size());
             for (BlockData block : blockList)
             {
-                blockMap.add(block);
-                blockIdMap.add(BlockData.getBlockId(block));
+                add(block);
             }
         }
     }
@@ -291,43 +500,195 @@ public class BlockList implements Collection<BlockData>
         timeRemaining = ttl;
     }
 
+    @Override
     public int size()
     {
-        if (blockList == null)
+        return count;
+    }
+
+    public boolean undo()
+    {
+        for (int i = 0; i < count; i++)
         {
-            return 0;
+            if (!undo(i))
+            {
+                return false;
+            }
         }
-        return blockList.size();
+
+        return true;
     }
 
-    public Object[] toArray()
+    /**
+     * Restore a single block in this list to its recorded state.
+     * 
+     * @param index
+     *            The index of the block
+     * @return false if the block's world or chunk is not loaded
+     */
+    public boolean undo(int index)
     {
-        if (blockList == null)
+        World world = getWorld(index);
+        if (world == null)
         {
-            return null;
+            return false;
         }
-        return blockList.toArray();
+
+        long blockId = blockIds[index];
+        int x = BlockData.getBlockX(blockId);
+        int z = BlockData.getBlockZ(blockId);
+        if (!world.isChunkLoaded(x >> 4, z >> 4))
+        {
+            return false;
+        }
+
+        Block block = world.getBlockAt(x, BlockData.getBlockY(blockId), z);
+        Material material = getMaterial(index);
+        byte data = materialData[index];
+        if (block.getType() != material || block.getData() != data)
+        {
+            block.setType(material);
+            block.setData(data);
+        }
+
+        return true;
     }
 
-    public <T> T[] toArray(T[] arg0)
+    protected boolean addBlockId(long blockId)
     {
-        if (blockList == null)
+        if (blockIdSet == null)
         {
-            return null;
+            blockIdSet = new LongHashSet();
         }
-        return blockList.toArray(arg0);
+        return blockIdSet.add(blockId);
     }
 
-    public boolean undo()
+    protected void append(long blockId, World world, Material material,
+            byte data)
     {
-        for (BlockData block : this)
+        ensureCapacity(count + 1);
+        int worldIndex = BlockData.getWorldIndex(blockId);
+        if (worlds == null)
+        {
+            worlds = new World[worldIndex + 1];
+        }
+        else if (worlds.length <= worldIndex)
         {
-            if (!block.undo())
+            World[] newWorlds = new World[worldIndex + 1];
+            System.arraycopy(worlds, 0, newWorlds, 0, worlds.length);
+            worlds = newWorlds;
+        }
+        if (world != null)
+        {
+            worlds[worldIndex] = world;
+        }
+
+        blockIds[count] = blockId;
+        materials[count] = material == null ? NO_MATERIAL : material.getId();
+        materialData[count] = data;
+        count++;
+    }
+
+    protected void checkIndex(int index)
+    {
+        if (index < 0 || index >= count)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+    }
+
+    protected void contain(int x, int y, int z)
+    {
+        if (bounds.contain(x, y, z))
+        {
+            area = null;
+        }
+    }
+
+    protected void ensureCapacity(int capacity)
+    {
+        if (blockIds == null)
+        {
+            capacity = Math.max(capacity, INITIAL_CAPACITY);
+            blockIds = new long[capacity];
+            materials = new int[capacity];
+            materialData = new byte[capacity];
+            return;
+        }
+
+        if (blockIds.length >= capacity)
+        {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, blockIds.length * 3 / 2 + 1);
+        long[] newBlockIds = new long[newCapacity];
+        int[] newMaterials = new int[newCapacity];
+        byte[] newMaterialData = new byte[newCapacity];
+        System.arraycopy(blockIds, 0, newBlockIds, 0, count);
+        System.arraycopy(materials, 0, newMaterials, 0, count);
+        System.arraycopy(materialData, 0, newMaterialData, 0, count);
+        blockIds = newBlockIds;
+        materials = newMaterials;
+        materialData = newMaterialData;
+    }
+
+    protected void removeAt(int index)
+    {
+        blockIdSet.remove(blockIds[index]);
+        int moved = count - index - 1;
+        if (moved > 0)
+        {
+            System.arraycopy(blockIds, index + 1, blockIds, index, moved);
+            System.arraycopy(materials, index + 1, materials, index, moved);
+            System.arraycopy(materialData, index + 1, materialData, index, moved);
+        }
+        count--;
+    }
+
+    protected void updateBlockIds()
+    {
+        blockIdSet = new LongHashSet(count);
+        for (int i = 0; i < count; i++)
+        {
+            blockIdSet.add(blockIds[i]);
+        }
+    }
+
+    /**
+     * Iterates over BlockData views of this list, in the order blocks were
+     * added.
+     */
+    protected class BlockIterator implements Iterator<BlockData>
+    {
+        protected int next = 0;
+
+        protected int last = -1;
+
+        public boolean hasNext()
+        {
+            return next < count;
+        }
+
+        public BlockData next()
+        {
+            if (next >= count)
             {
-                return false;
+                throw new NoSuchElementException();
             }
+            last = next++;
+            return get(last);
         }
 
-        return true;
+        public void remove()
+        {
+            if (last < 0)
+            {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
     }
 }
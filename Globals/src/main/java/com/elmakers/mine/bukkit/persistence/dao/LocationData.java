@@ -56,7 +56,7 @@ public class LocationData extends Persisted
             final double z)
     {
         position = new BlockVector(x, y, z);
-        worldData = getPersistence().get(world.getName(), WorldData.class);
+        worldData = WorldData.get(world);
         orientation = null;
     }
 
@@ -74,7 +74,7 @@ public class LocationData extends Persisted
             final double z, final float yaw, final float pitch)
     {
         position = new BlockVector(x, y, z);
-        worldData = getPersistence().get(world.getName(), WorldData.class);
+        worldData = WorldData.get(world);
         orientation = new Orientation(yaw, pitch);
     }
 
@@ -323,7 +323,7 @@ public class LocationData extends Persisted
      */
     public void setWorld(World world)
     {
-        worldData = getPersistence().get(world.getName(), WorldData.class);
+        worldData = WorldData.get(world);
     }
 
     /**
@@ -444,6 +444,6 @@ public class LocationData extends Persisted
      */
     public void updateWorld(Location loc)
     {
-        worldData = getPersistence().get(loc.getWorld().getName(), WorldData.class);
+        worldData = WorldData.get(loc.getWorld());
     }
 }
@@ -0,0 +1,249 @@
+package com.elmakers.mine.bukkit.persistence.dao;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs, using open addressing.
+ * 
+ * This is used to track packed block ids, without the boxing and hashing
+ * overhead of a HashSet of Longs- each entry costs 8 bytes (at most 16, just
+ * before growing), instead of a Long and a HashMap entry.
+ * 
+ * This is not thread-safe.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class LongHashSet
+{
+    // Marks an empty slot- the free key itself is tracked separately
+    protected static final long FREE_KEY         = 0;
+
+    protected static final int  MINIMUM_CAPACITY = 16;
+
+    protected boolean           hasFreeKey       = false;
+
+    protected long[]            keys;
+
+    protected int               mask;
+
+    protected int               size             = 0;
+
+    public LongHashSet()
+    {
+        this(MINIMUM_CAPACITY);
+    }
+
+    /**
+     * Create a set with room for a number of keys before it needs to grow.
+     * 
+     * @param expectedSize
+     *            The number of keys expected
+     */
+    public LongHashSet(int expectedSize)
+    {
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < expectedSize * 2)
+        {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    protected static int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    /**
+     * Add a key to this set.
+     * 
+     * @param key
+     *            The key to add
+     * @return true if the key was added, false if it was already present
+     */
+    public boolean add(long key)
+    {
+        if (key == FREE_KEY)
+        {
+            if (hasFreeKey)
+            {
+                return false;
+            }
+            hasFreeKey = true;
+            size++;
+            return true;
+        }
+
+        int index = hash(key) & mask;
+        long current;
+        while ((current = keys[index]) != FREE_KEY)
+        {
+            if (current == key)
+            {
+                return false;
+            }
+            index = index + 1 & mask;
+        }
+
+        keys[index] = key;
+        size++;
+        if (size * 2 > keys.length)
+        {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    public void clear()
+    {
+        if (size == 0)
+        {
+            return;
+        }
+        Arrays.fill(keys, FREE_KEY);
+        hasFreeKey = false;
+        size = 0;
+    }
+
+    public boolean contains(long key)
+    {
+        if (key == FREE_KEY)
+        {
+            return hasFreeKey;
+        }
+
+        int index = hash(key) & mask;
+        long current;
+        while ((current = keys[index]) != FREE_KEY)
+        {
+            if (current == key)
+            {
+                return true;
+            }
+            index = index + 1 & mask;
+        }
+        return false;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Remove a key from this set.
+     * 
+     * Following keys are shifted back into the freed slot, so that no
+     * tombstones are needed.
+     * 
+     * @param key
+     *            The key to remove
+     * @return true if the key was present
+     */
+    public boolean remove(long key)
+    {
+        if (key == FREE_KEY)
+        {
+            if (!hasFreeKey)
+            {
+                return false;
+            }
+            hasFreeKey = false;
+            size--;
+            return true;
+        }
+
+        int index = hash(key) & mask;
+        long current;
+        while ((current = keys[index]) != FREE_KEY)
+        {
+            if (current == key)
+            {
+                shiftKeys(index);
+                size--;
+                return true;
+            }
+            index = index + 1 & mask;
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Copy the keys in this set to an array, in no particular order.
+     * 
+     * @return A new array of keys
+     */
+    public long[] toArray()
+    {
+        long[] result = new long[size];
+        int count = 0;
+        if (hasFreeKey)
+        {
+            result[count++] = FREE_KEY;
+        }
+        for (long key : keys)
+        {
+            if (key != FREE_KEY)
+            {
+                result[count++] = key;
+            }
+        }
+        return result;
+    }
+
+    protected void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        keys = new long[capacity];
+        mask = capacity - 1;
+        for (long key : oldKeys)
+        {
+            if (key != FREE_KEY)
+            {
+                int index = hash(key) & mask;
+                while (keys[index] != FREE_KEY)
+                {
+                    index = index + 1 & mask;
+                }
+                keys[index] = key;
+            }
+        }
+    }
+
+    protected void shiftKeys(int index)
+    {
+        int last;
+        long current;
+        while (true)
+        {
+            last = index;
+            index = index + 1 & mask;
+            while (true)
+            {
+                current = keys[index];
+                if (current == FREE_KEY)
+                {
+                    keys[last] = FREE_KEY;
+                    return;
+                }
+                int slot = hash(current) & mask;
+                // Move the key back unless its home slot lies cyclically in
+                // (last, index]
+                if (last <= index ? last >= slot || slot > index : last >= slot && slot > index)
+                {
+                    break;
+                }
+                index = index + 1 & mask;
+            }
+            keys[last] = current;
+        }
+    }
+}
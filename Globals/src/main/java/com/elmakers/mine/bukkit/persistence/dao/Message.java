@@ -172,7 +172,7 @@ public class Message extends Persisted
         this.messageId = messageId;
     }
 
-    @PersistField
+    @PersistField(indexed = true)
     public void setPlugin(PluginData plugin)
     {
         this.plugin = plugin;
@@ -118,25 +118,21 @@ public class PlayerData extends Persisted
 
     public void denyPermission(ProfileData profile)
     {
-        if (denyMap == null)
-        {
-            denyMap = new HashMap<String, ProfileData>();
-        }
         if (deny == null)
         {
             deny = new ArrayList<ProfileData>();
         }
 
-        if (denyMap.get(profile.getId()) == null)
+        if (getDenyMap().get(profile.getId()) == null)
         {
             denyMap.put(profile.getId(), profile);
             deny.add(profile);
         }
 
         // Remove from the allow map if present, since we'd block it anyway.
-        if (grantMap != null)
+        if (grant != null)
         {
-            ProfileData allowProfile = grantMap.get(profile.getId());
+            ProfileData allowProfile = getGrantMap().get(profile.getId());
             if (allowProfile != null)
             {
                 grantMap.remove(allowProfile.getId());
@@ -162,24 +158,56 @@ public class PlayerData extends Persisted
         lastDisconnect = new Date();
     }
 
-    @PersistField
+    @PersistField(lazy = true)
     public List<ProfileData> getDeny()
     {
         return deny;
     }
 
+    protected HashMap<String, ProfileData> getDenyMap()
+    {
+        if (denyMap == null)
+        {
+            denyMap = new HashMap<String, ProfileData>();
+            if (deny != null)
+            {
+                for (ProfileData profile : deny)
+                {
+                    denyMap.put(profile.getId(), profile);
+                }
+            }
+        }
+        return denyMap;
+    }
+
     @PersistField
     public Date getFirstLogin()
     {
         return firstLogin;
     }
 
-    @PersistField
+    @PersistField(lazy = true)
     public List<ProfileData> getGrant()
     {
         return grant;
     }
 
+    protected HashMap<String, ProfileData> getGrantMap()
+    {
+        if (grantMap == null)
+        {
+            grantMap = new HashMap<String, ProfileData>();
+            if (grant != null)
+            {
+                for (ProfileData profile : grant)
+                {
+                    grantMap.put(profile.getId(), profile);
+                }
+            }
+        }
+        return grantMap;
+    }
+
     @PersistField
     public List<Group> getGroups()
     {
@@ -222,16 +250,12 @@ public class PlayerData extends Persisted
 
     public void grantPermission(ProfileData profile)
     {
-        if (grantMap == null)
-        {
-            grantMap = new HashMap<String, ProfileData>();
-        }
         if (grant == null)
         {
             grant = new ArrayList<ProfileData>();
         }
 
-        if (grantMap.get(profile.getId()) == null)
+        if (getGrantMap().get(profile.getId()) == null)
         {
             grantMap.put(profile.getId(), profile);
             grant.add(profile);
@@ -240,9 +264,9 @@ public class PlayerData extends Persisted
         // Now, make sure to remove from the deny map also
         // This is more for inherited permissions, we don't
         // want to block ourselves here.
-        if (denyMap != null)
+        if (deny != null)
         {
-            ProfileData denyProfile = denyMap.get(profile.getId());
+            ProfileData denyProfile = getDenyMap().get(profile.getId());
             if (denyProfile != null)
             {
                 denyMap.remove(denyProfile.getId());
@@ -341,11 +365,8 @@ public class PlayerData extends Persisted
     {
         this.deny = deny;
 
-        denyMap = new HashMap<String, ProfileData>();
-        for (ProfileData profile : deny)
-        {
-            denyMap.put(profile.getId(), profile);
-        }
+        // Built on first use, so a lazy list isn't loaded here
+        denyMap = null;
     }
 
     public void setFirstLogin(Date firstLogin)
@@ -357,11 +378,8 @@ public class PlayerData extends Persisted
     {
         this.grant = grant;
 
-        grantMap = new HashMap<String, ProfileData>();
-        for (ProfileData profile : grant)
-        {
-            grantMap.put(profile.getId(), profile);
-        }
+        // Built on first use, so a lazy list isn't loaded here
+        grantMap = null;
     }
 
     public void setGroups(List<Group> groups)
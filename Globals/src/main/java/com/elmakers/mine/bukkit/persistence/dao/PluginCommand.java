@@ -490,7 +490,7 @@ public class PluginCommand extends Persisted implements
         this.permissionType = permissionType;
     }
 
-    @PersistField
+    @PersistField(indexed = true)
     public void setPlugin(PluginData plugin)
     {
         this.plugin = plugin;
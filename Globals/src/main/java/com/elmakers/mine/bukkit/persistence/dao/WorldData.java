@@ -1,6 +1,10 @@
 package com.elmakers.mine.bukkit.persistence.dao;
 
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
 
 import org.bukkit.Location;
 import org.bukkit.Server;
@@ -15,10 +19,321 @@ import com.elmakers.mine.bukkit.persisted.Persisted;
 @PersistClass(schema = "global", name = "world")
 public class WorldData extends Persisted
 {
+    // World index -> the WorldData last resolved for that index
+    private static WorldData[]                indexedData   = new WorldData[8];
+
+    // World index -> the World last seen with that index
+    private static World[]                    indexedWorlds = new World[8];
+
+    private static final Map<String, Integer> worldIndices  = new HashMap<String, Integer>();
+
+    // Bumped whenever an index is handed to a different world name
+    private static volatile int               generation    = 0;
+
+    // Where to start looking for an index to recycle
+    private static int                        nextRecycled  = 0;
+
+    private static final Logger               log           = Logger.getLogger("Minecraft");
+
+    /**
+     * Get the WorldData for a loaded world.
+     * 
+     * Worlds are cached by identity, so after the first call this doesn't
+     * need a persistence lookup, or even the world's name. A new WorldData is
+     * created and persisted if there isn't one yet.
+     * 
+     * @param world
+     *            The world
+     * @return The world's data, or null if world is null
+     */
+    public static WorldData get(World world)
+    {
+        if (world == null)
+        {
+            return null;
+        }
+
+        int index;
+        WorldData data;
+        synchronized (worldIndices)
+        {
+            index = getWorldIndex(world);
+            data = indexedData[index];
+        }
+        if (data != null)
+        {
+            return data;
+        }
+
+        data = persistence.get(world.getName(), WorldData.class);
+        if (data == null)
+        {
+            data = new WorldData(world);
+            persistence.put(data);
+        }
+        data.world = world;
+
+        synchronized (worldIndices)
+        {
+            if (indexedWorlds[index] == world)
+            {
+                indexedData[index] = data;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Get the data for the world with an index.
+     * 
+     * This works whether or not the world is loaded- if it isn't, the data is
+     * looked up by the name the index was given for.
+     * 
+     * @param index
+     *            The world index
+     * @return The world's data, or null if no world has that index
+     * @see #getWorldIndex(String)
+     */
+    public static WorldData getIndexedData(int index)
+    {
+        World world = null;
+        String worldName = null;
+        synchronized (worldIndices)
+        {
+            if (index >= 0 && index < indexedWorlds.length)
+            {
+                if (indexedData[index] != null)
+                {
+                    return indexedData[index];
+                }
+                world = indexedWorlds[index];
+            }
+            if (world == null)
+            {
+                for (Map.Entry<String, Integer> entry : worldIndices.entrySet())
+                {
+                    if (entry.getValue() == index)
+                    {
+                        worldName = entry.getKey();
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (world != null)
+        {
+            return get(world);
+        }
+        if (worldName == null)
+        {
+            return null;
+        }
+
+        WorldData data = persistence.get(worldName, WorldData.class);
+        if (data == null)
+        {
+            // Not persisted yet- the world will be stored when it loads
+            data = new WorldData(worldName, null);
+        }
+        return data;
+    }
+
+    /**
+     * Get the loaded world with an index.
+     * 
+     * @param index
+     *            The world index
+     * @return The world, or null if no world with that index has been seen
+     *         since it was last loaded
+     * @see #getWorldIndex(World)
+     */
+    public static World getIndexedWorld(int index)
+    {
+        synchronized (worldIndices)
+        {
+            if (index < 0 || index >= indexedWorlds.length)
+            {
+                return null;
+            }
+            return indexedWorlds[index];
+        }
+    }
+
+    /**
+     * Get the index of a loaded world.
+     * 
+     * This is the same as getWorldIndex(world.getName()), but worlds that
+     * have been seen before are found by identity, without hashing the name.
+     * 
+     * @param world
+     *            The world
+     * @return The world's index
+     * @throws IllegalArgumentException
+     *             If world is null
+     * @see #getWorldIndex(String)
+     */
+    public static int getWorldIndex(World world)
+    {
+        if (world == null)
+        {
+            throw new IllegalArgumentException("Can't index a null world");
+        }
+
+        synchronized (worldIndices)
+        {
+            for (int i = 0; i < indexedWorlds.length; i++)
+            {
+                if (indexedWorlds[i] == world)
+                {
+                    return i;
+                }
+            }
+
+            int index = getWorldIndex(world.getName());
+            if (index >= indexedWorlds.length)
+            {
+                int size = Math.max(indexedWorlds.length * 2, index + 1);
+                World[] newWorlds = new World[size];
+                WorldData[] newData = new WorldData[size];
+                System.arraycopy(indexedWorlds, 0, newWorlds, 0, indexedWorlds.length);
+                System.arraycopy(indexedData, 0, newData, 0, indexedData.length);
+                indexedWorlds = newWorlds;
+                indexedData = newData;
+            }
+
+            // A world loaded again under the same name replaces the old one
+            indexedWorlds[index] = world;
+            indexedData[index] = null;
+            return index;
+        }
+    }
+
+    /**
+     * Get a small, stable index for a world name.
+     * 
+     * Indices are handed out in the order worlds are first seen, and are only
+     * valid for the lifetime of the server- they are used for packing block
+     * ids, and should never be persisted.
+     * 
+     * A name keeps its index even if its world is unloaded. Only
+     * BlockData.WORLD_INDEX_LIMIT indices fit in a block id, so once they
+     * have all been handed out, the index of a world that isn't loaded is
+     * given to the new name.
+     * 
+     * @param worldName
+     *            The name of the world
+     * @return The world's index
+     */
+    public static int getWorldIndex(String worldName)
+    {
+        synchronized (worldIndices)
+        {
+            Integer index = worldIndices.get(worldName);
+            if (index == null)
+            {
+                if (worldIndices.size() < BlockData.WORLD_INDEX_LIMIT)
+                {
+                    index = worldIndices.size();
+                }
+                else
+                {
+                    index = recycleIndex(worldName);
+                }
+                worldIndices.put(worldName, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Take an index back from the world name that holds it, so it can be
+     * given to a new name.
+     * 
+     * Worlds that aren't loaded give up their indices first, oldest first.
+     * Blocks already in a BlockList keep the World they were added with. If
+     * every index belongs to a loaded world, one of them is taken anyway, and
+     * will get a new index the next time it is used.
+     * 
+     * This must be called while holding the worldIndices lock.
+     * 
+     * @param worldName
+     *            The name that needs an index
+     * @return The recycled index
+     */
+    protected static int recycleIndex(String worldName)
+    {
+        int limit = BlockData.WORLD_INDEX_LIMIT;
+        int index = -1;
+        for (int i = 0; i < limit; i++)
+        {
+            int candidate = (nextRecycled + i) % limit;
+            if (candidate >= indexedWorlds.length || indexedWorlds[candidate] == null)
+            {
+                index = candidate;
+                break;
+            }
+        }
+        if (index < 0)
+        {
+            index = nextRecycled;
+            log.warning("Persistence: More than " + limit + " worlds are loaded, " + worldName + " is taking the index of a loaded world");
+        }
+        nextRecycled = (index + 1) % limit;
+
+        Iterator<Map.Entry<String, Integer>> it = worldIndices.entrySet().iterator();
+        while (it.hasNext())
+        {
+            if (it.next().getValue() == index)
+            {
+                it.remove();
+            }
+        }
+        if (index < indexedWorlds.length)
+        {
+            indexedWorlds[index] = null;
+            indexedData[index] = null;
+        }
+        generation++;
+        return index;
+    }
+
+    /**
+     * Forget the cached data for a world.
+     * 
+     * This should be called when a world is loaded or unloaded, so that
+     * nothing holds on to an old World.
+     * 
+     * @param world
+     *            The world
+     */
+    public static void invalidate(World world)
+    {
+        synchronized (worldIndices)
+        {
+            Integer index = worldIndices.get(world.getName());
+            if (index == null || index >= indexedWorlds.length)
+            {
+                return;
+            }
+            if (indexedData[index] != null)
+            {
+                indexedData[index].world = null;
+            }
+            indexedWorlds[index] = null;
+            indexedData[index] = null;
+        }
+    }
+
     protected Environment environmentType;
 
     protected long        id;
 
+    // Transient
+    protected int         index = -1;
+
+    protected int         indexedGeneration;
+
     protected String      name;
 
     protected BlockVector spawn;
@@ -47,6 +362,26 @@ public class WorldData extends Persisted
         return environmentType;
     }
 
+    /**
+     * Get this world's index.
+     * 
+     * The index is looked up again if it may have been recycled since it was
+     * last checked.
+     * 
+     * @return The world index
+     * @see #getWorldIndex(String)
+     */
+    public int getIndex()
+    {
+        int current = generation;
+        if (index < 0 || indexedGeneration != current)
+        {
+            index = getWorldIndex(name);
+            indexedGeneration = current;
+        }
+        return index;
+    }
+
     @PersistField(id = true)
     public String getName()
     {
@@ -98,6 +433,7 @@ public class WorldData extends Persisted
     public void setName(String name)
     {
         this.name = name;
+        index = -1;
     }
 
     public void setSpawn(BlockVector spawn)
@@ -110,6 +446,7 @@ public class WorldData extends Persisted
         this.world = world;
 
         name = world.getName();
+        index = -1;
         id = world.getId();
         Location location = world.getSpawnLocation();
         spawn = new BlockVector(location.getBlockX(), location.getBlockY(), location.getBlockZ());
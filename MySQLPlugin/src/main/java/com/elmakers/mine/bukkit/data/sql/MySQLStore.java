@@ -23,6 +23,13 @@ public class MySQLStore extends SqlStore
         this.password = password;
     }
 
+    @Override
+    protected String getBackfillSql(String tableName, String columnName,
+            String expression, int batchSize)
+    {
+        return "UPDATE \"" + tableName + "\" SET \"" + columnName + "\" = " + expression + " WHERE \"" + columnName + "\" IS NULL LIMIT " + batchSize;
+    }
+
     @Override
     public String getConnectionString(String schema, String user,
             String password)
@@ -36,6 +43,28 @@ public class MySQLStore extends SqlStore
         return "com.mysql.jdbc.Driver";
     }
 
+    @Override
+    protected String getIndexExistsSql(String tableName, String indexName)
+    {
+        return "SELECT index_name FROM information_schema.statistics WHERE table_schema = DATABASE() AND table_name = '" + tableName + "' AND index_name = '" + indexName + "'";
+    }
+
+    @Override
+    protected String getLimitSql(int limit, int offset)
+    {
+        if (limit <= 0 && offset <= 0)
+        {
+            return "";
+        }
+        // MySQL has no "no limit" value, so use the largest one it allows
+        String limitSql = " LIMIT " + (limit > 0 ? Integer.toString(limit) : "18446744073709551615");
+        if (offset > 0)
+        {
+            limitSql += " OFFSET " + offset;
+        }
+        return limitSql;
+    }
+
     @Override
     public String getMasterTableName()
     {
@@ -91,6 +120,10 @@ public class MySQLStore extends SqlStore
         {
             return DataType.STRING;
         }
+        else if (typeName.equalsIgnoreCase("LONGBLOB"))
+        {
+            return DataType.BLOB;
+        }
 
         return DataType.NULL;
     }
@@ -116,6 +149,8 @@ public class MySQLStore extends SqlStore
                 return "REAL";
             case STRING:
                 return "TEXT";
+            case BLOB:
+                return "LONGBLOB";
         }
         return null;
     }
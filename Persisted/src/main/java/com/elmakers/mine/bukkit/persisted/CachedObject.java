@@ -1,52 +1,115 @@
 package com.elmakers.mine.bukkit.persisted;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A single entry in an entity cache.
+ * 
+ * This is kept as small as possible, since there is one per cached object.
+ * Flags are packed into a single int, and the cache time is kept in seconds,
+ * read from a coarse clock that is updated once per server tick instead of
+ * calling System.currentTimeMillis() on every access.
+ * 
+ * @author NathanWolf
+ * 
+ */
 public class CachedObject {
-    private boolean cached;
-    private long cacheTime;
-    private boolean dirty;
+    private static final int CACHED = 1;
+    private static final int DIRTY = 2;
+
+    private static final AtomicIntegerFieldUpdater<CachedObject> flagsUpdater = AtomicIntegerFieldUpdater.newUpdater(CachedObject.class, "flags");
+
+    private static final long clockBaseTime = System.currentTimeMillis();
+    private static volatile int clock = 0;
+
+    /**
+     * Update the coarse clock used for cache times.
+     * 
+     * This should be called once per server tick.
+     */
+    public static void tick() {
+        clock = (int) ((System.currentTimeMillis() - clockBaseTime) / 1000);
+    }
+
+    private int cacheTime;
+    private volatile int flags;
     private Object object;
+    private Object savedData;
 
     public CachedObject(Object o) {
         object = o;
-        cached = true;
-        dirty = false;
-        cacheTime = System.currentTimeMillis();
-        updateCacheTime();
+        flags = CACHED;
+        cacheTime = clock;
     }
 
+    /**
+     * Get the last time this object was cached or saved.
+     * 
+     * This is only accurate to about a second.
+     * 
+     * @return The cache time, in milliseconds
+     */
     public long getCacheTime() {
-        return cacheTime;
+        return clockBaseTime + cacheTime * 1000L;
     }
 
     public Object getObject() {
         return object;
     }
 
+    /**
+     * Get a copy of this object's data as of the last time it was written to
+     * the data store.
+     * 
+     * @return The saved data, or null if not known
+     */
+    public Object getSavedData() {
+        return savedData;
+    }
+
     public boolean isCached() {
-        return cached;
+        return (flags & CACHED) != 0;
     }
 
     public boolean isDirty() {
-        return dirty;
+        return (flags & DIRTY) != 0;
     }
 
     public void setCached(boolean c) {
-        cached = c;
+        setFlag(CACHED, c);
     }
 
     public void setObject(Object o) {
         object = o;
-        dirty = true;
+        setFlag(DIRTY, true);
         updateCacheTime();
     }
 
+    public void setSavedData(Object savedData) {
+        this.savedData = savedData;
+    }
+
     public void setSaved() {
-        dirty = false;
+        setFlag(DIRTY, false);
         updateCacheTime();
     }
 
+    public void setSaved(Object savedData) {
+        this.savedData = savedData;
+        setSaved();
+    }
+
+    protected void setFlag(int flag, boolean set) {
+        int current;
+        int updated;
+        do {
+            current = flags;
+            updated = set ? current | flag : current & ~flag;
+        } while (current != updated && !flagsUpdater.compareAndSet(this, current, updated));
+    }
+
     protected void updateCacheTime() {
-        cacheTime = System.currentTimeMillis();
+        cacheTime = clock;
     }
 
 }
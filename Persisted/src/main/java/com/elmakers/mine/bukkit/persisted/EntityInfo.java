@@ -5,12 +5,14 @@ public class EntityInfo {
     private boolean contained = false;
     private String name;
     private String schema;
+    private boolean subclasses = false;
 
     public EntityInfo(PersistClass defaults) {
         schema = defaults.schema();
         name = defaults.name();
         contained = defaults.contained();
         cached = defaults.cached();
+        subclasses = defaults.subclasses();
     }
 
     public EntityInfo(String schema, String name) {
@@ -34,6 +36,10 @@ public class EntityInfo {
         return contained;
     }
 
+    public boolean isSubclassed() {
+        return subclasses;
+    }
+
     public void setCached(boolean cached) {
         this.cached = cached;
     }
@@ -49,4 +55,8 @@ public class EntityInfo {
     public void setSchema(String schema) {
         this.schema = schema;
     }
+
+    public void setSubclassed(boolean subclasses) {
+        this.subclasses = subclasses;
+    }
 }
@@ -0,0 +1,20 @@
+package com.elmakers.mine.bukkit.persisted;
+
+/**
+ * How a persisted field's data is laid out in the data store.
+ * 
+ * @author NathanWolf
+ * @see PersistField#encoding()
+ * 
+ */
+public enum FieldEncoding {
+    /**
+     * Lists are stored in a sub-table, one row per item.
+     */
+    DEFAULT,
+
+    /**
+     * Lists are packed into a single binary column in the owning row.
+     */
+    BINARY
+}
@@ -3,9 +3,12 @@ package com.elmakers.mine.bukkit.persisted;
 public class FieldInfo {
     private boolean auto = false;
     private boolean contained = false;
+    private FieldEncoding encoding = FieldEncoding.DEFAULT;
     private String field;
     private String getter;
     private boolean id = false;
+    private boolean indexed = false;
+    private boolean lazy = false;
     private String name;
     private boolean readonly = false;
     private String setter;
@@ -16,6 +19,9 @@ public class FieldInfo {
         id = fieldInfo.id();
         auto = fieldInfo.auto();
         contained = fieldInfo.contained();
+        encoding = fieldInfo.encoding();
+        indexed = fieldInfo.indexed();
+        lazy = fieldInfo.lazy();
         readonly = fieldInfo.readonly();
         name = fieldInfo.name();
     }
@@ -24,6 +30,10 @@ public class FieldInfo {
         this.name = name;
     }
 
+    public FieldEncoding getEncoding() {
+        return encoding;
+    }
+
     public String getField() {
         return field;
     }
@@ -52,6 +62,14 @@ public class FieldInfo {
         return id;
     }
 
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
     public boolean isReadOnly() {
         return readonly;
     }
@@ -64,6 +82,10 @@ public class FieldInfo {
         this.contained = contained;
     }
 
+    public void setEncoding(FieldEncoding encoding) {
+        this.encoding = encoding;
+    }
+
     public void setField(String field) {
         this.field = field;
     }
@@ -76,6 +98,14 @@ public class FieldInfo {
         this.id = id;
     }
 
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
     public void setName(String name) {
         this.name = name;
     }
@@ -13,7 +13,13 @@ import java.lang.annotation.Target;
  * 
  * AUTO: This is an automatic migration- a backup, drop, and restore. RESET:
  * This is for auto-generated data, the data is dropped and data is list.
- * CUSTOM: A custom script is used to perform the migration.
+ * CUSTOM: A custom script is used to perform the migration. BACKFILL: A new
+ * column (given by "column") is filled in with the SQL expression given by
+ * "statement", a batch at a time.
+ * 
+ * Adding new fields to a class does not need a migration step- new columns are
+ * added automatically, without touching existing data. Each step is only
+ * performed once, and is recorded in the global migration table.
  * 
  * @author NathanWolf
  * @see PersistClass
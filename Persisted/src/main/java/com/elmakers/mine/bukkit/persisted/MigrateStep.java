@@ -10,6 +10,8 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface MigrateStep {
+    String column() default "";
+
     String id();
 
     String pluginVersion() default "";
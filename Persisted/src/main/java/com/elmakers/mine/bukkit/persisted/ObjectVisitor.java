@@ -0,0 +1,21 @@
+package com.elmakers.mine.bukkit.persisted;
+
+/**
+ * A callback used to visit persisted objects one at a time.
+ * 
+ * @see Persistence#forEach(Class, ObjectVisitor)
+ * 
+ * @author NathanWolf
+ * 
+ * @param <T> The type of object to visit
+ */
+public interface ObjectVisitor<T> {
+    /**
+     * Called once for each object.
+     * 
+     * @param object The object being visited
+     * 
+     * @return true to keep going, false to stop visiting objects
+     */
+    public boolean visit(T object);
+}
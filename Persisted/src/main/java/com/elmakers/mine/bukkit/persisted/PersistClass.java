@@ -72,4 +72,19 @@ public @interface PersistClass {
      */
     String schema();
 
+    /**
+     * Allow subclasses of this class to be persisted with it.
+     * 
+     * Subclasses that don't have their own PersistClass annotation are then
+     * stored in this class' table and cache. The name of each object's class
+     * is stored along with it, so it's loaded back as the same class.
+     * 
+     * Subclasses can't add persisted fields of their own. A subclass from
+     * another plugin should be registered with Persistence, by looking up its
+     * persisted class, before this class' data is first loaded.
+     * 
+     * @return true if unannotated subclasses may be persisted as this class
+     */
+    boolean subclasses() default false;
+
 }
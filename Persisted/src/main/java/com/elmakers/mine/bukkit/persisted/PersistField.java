@@ -45,6 +45,20 @@ public @interface PersistField {
      */
     boolean contained() default false;
 
+    /**
+     * Specify how this field's data is stored.
+     * 
+     * A BINARY list is packed into a single column of its owner's table,
+     * instead of a sub-table with a row per item. This makes large lists
+     * much cheaper to save and load, but the items can't be queried
+     * individually.
+     * 
+     * This is only valid for Lists of data values or contained objects.
+     * 
+     * @return The encoding to use
+     */
+    FieldEncoding encoding() default FieldEncoding.DEFAULT;
+
     /**
      * Specify that this field is an index field.
      * 
@@ -54,6 +68,34 @@ public @interface PersistField {
      */
     boolean id() default false;
 
+    /**
+     * Specify that this field should be indexed.
+     * 
+     * An index is created on this field's column in the data store, and a
+     * secondary index is kept on the cached objects, so that looking up
+     * objects by this field doesn't require checking every object.
+     * 
+     * This is only valid for fields stored in the class' own table- not lists.
+     * 
+     * @return true if this field is indexed.
+     */
+    boolean indexed() default false;
+
+    /**
+     * Specify that this list should be loaded lazily.
+     * 
+     * A lazy list is not loaded along with its owning object- its data is
+     * read from the store the first time the list is used. It is only written
+     * back if it has been changed.
+     * 
+     * This is only valid for List fields. The list may be replaced with a
+     * proxy List, so the field's type must be List, not a specific List
+     * implementation.
+     * 
+     * @return true if this list is lazy.
+     */
+    boolean lazy() default false;
+
     /**
      * Specify the column name to use for this field.
      * 
@@ -1,11 +1,70 @@
 package com.elmakers.mine.bukkit.persisted;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassException;
 
 public interface Persistence {
 
+    /**
+     * Get the number of instances of the specified type.
+     * 
+     * This does not copy or create any objects, so it is much cheaper than
+     * counting the results of getAll.
+     * 
+     * @param objectType The type of object to count
+     * 
+     * @return The number of objects
+     */
+    public abstract int count(Class<? extends Object> objectType);
+
+    /**
+     * Write a single object to the data store immediately.
+     * 
+     * Unlike save(), this does not look through every cached object for
+     * changes- only this object's data, including its lists, is written. Use
+     * this to make sure a specific change is stored, such as a player's data
+     * when they log out.
+     * 
+     * The object will be added to the cache if it isn't there already.
+     * 
+     * @param persist The object to write
+     * 
+     * @return false if the write failed
+     */
+    public abstract boolean flush(Object persist);
+
+    /**
+     * Write a set of objects to the data store immediately.
+     * 
+     * This writes the objects, and their lists, as a single transaction when
+     * the data store supports it- either all of the changes are stored, or
+     * none of them are.
+     * 
+     * @see #flush(Object)
+     * 
+     * @param objects The objects to write, may be of mixed types
+     * 
+     * @return false if the write failed
+     */
+    public abstract boolean flush(Collection<? extends Object> objects);
+
+    /**
+     * Visit each instance of a specified type.
+     * 
+     * This works directly on the cache, with no intermediate list. Return
+     * false from the visitor to stop early. Objects added or removed while
+     * visiting may or may not be seen.
+     * 
+     * @param <T> The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param objectType The type of object to visit
+     * @param visitor The callback to call for each object
+     */
+    public abstract <T> void forEach(Class<T> objectType, ObjectVisitor<T> visitor);
+
     /**
      * Retrieve an instance of the specified type.
      * 
@@ -25,6 +84,29 @@ public interface Persistence {
      */
     public abstract <T> T get(Object id, Class<T> objectType);
 
+    /**
+     * Retrieve all instances of the specified type with a specific field
+     * value.
+     * 
+     * If the field is marked as indexed, this is a single lookup- otherwise
+     * every instance is checked. An example call:
+     * 
+     * List<Message> messages = persistence.getBy(Message.class, "plugin",
+     * pluginData);
+     * 
+     * For object references, the value may be either the referenced object, or
+     * its id.
+     * 
+     * @param <T> The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param objectType The type of object to search for
+     * @param fieldName The name of the field to check
+     * @param value The value to look for
+     * 
+     * @return A list of matching objects, possibly empty
+     */
+    public abstract <T> List<T> getBy(Class<T> objectType, String fieldName, Object value);
+
     /**
      * Populates a list of all instances of a specified type.
      * 
@@ -55,6 +137,82 @@ public interface Persistence {
      */
     public PersistedClass getPersistedClass(Class<? extends Object> persistClass) throws InvalidPersistedClassException;
 
+    /**
+     * Count the instances of a specified type for each value of a field.
+     * 
+     * If the type hasn't been loaded yet, this is done by the data store,
+     * without loading any objects. Object references are grouped by the
+     * referenced object's id.
+     * 
+     * @param objectType The type of object to count
+     * @param fieldName The field to group by
+     * 
+     * @return A map of field values to the number of objects with that value
+     */
+    public abstract Map<Object, Integer> groupBy(Class<? extends Object> objectType, String fieldName);
+
+    /**
+     * Iterate over all instances of a specified type.
+     * 
+     * Like forEach, this works directly on the cache. An example:
+     * 
+     * for (MyObject myObject : persistence.iterate(MyObject.class)) { ... }
+     * 
+     * The iteration is weakly consistent- it never throws a
+     * ConcurrentModificationException, but objects added or removed while
+     * iterating may or may not be seen. Iterator.remove is not supported, use
+     * remove() instead.
+     * 
+     * @param <T> The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param objectType The type of object to iterate over
+     * 
+     * @return An Iterable over all instances of objectType
+     */
+    public abstract <T> Iterable<T> iterate(Class<T> objectType);
+
+    /**
+     * Get the highest value of a field over all instances of a type.
+     * 
+     * @see #groupBy(Class, String)
+     * 
+     * @param objectType The type of object to check
+     * @param fieldName The field to check
+     * 
+     * @return The highest value, or null if there are no values
+     */
+    public abstract Object max(Class<? extends Object> objectType, String fieldName);
+
+    /**
+     * Get the lowest value of a field over all instances of a type.
+     * 
+     * @see #groupBy(Class, String)
+     * 
+     * @param objectType The type of object to check
+     * @param fieldName The field to check
+     * 
+     * @return The lowest value, or null if there are no values
+     */
+    public abstract Object min(Class<? extends Object> objectType, String fieldName);
+
+    /**
+     * Read only some fields of all instances of a specified type.
+     * 
+     * This returns flat records instead of objects- no objects are created,
+     * and no lists are read. If the type hasn't been loaded yet, only the
+     * requested columns are read from the data store. An example call:
+     * 
+     * List<Object[]> players = persistence.project(PlayerData.class, "id",
+     * "lastLogin");
+     * 
+     * @param objectType The type of object to read
+     * @param fieldNames The fields to read. Object references are returned as
+     *            the referenced object's id. Lists can't be read this way.
+     * 
+     * @return One array of values per object, in the same order as fieldNames
+     */
+    public abstract List<Object[]> project(Class<? extends Object> objectType, String... fieldNames);
+
     /**
      * Add an object to the data store.
      * 
@@ -99,6 +257,22 @@ public interface Persistence {
      */
     public abstract <T> void putAll(List<T> objects, Class<T> objectType);
 
+    /**
+     * Start a query for instances of a specified type.
+     * 
+     * Add conditions, ordering and a limit to the returned query, and then
+     * call list() to run it.
+     * 
+     * @see Query
+     * 
+     * @param <T> The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param objectType The type of object to query for
+     * 
+     * @return A new query
+     */
+    public abstract <T> Query<T> query(Class<T> objectType);
+
     /**
      * Remove an object from the cache (and data store on save)
      * 
@@ -106,4 +280,17 @@ public interface Persistence {
      */
     public abstract void remove(Object removeObject);
 
+    /**
+     * Add up the values of a numeric field over all instances of a type.
+     * 
+     * @see #groupBy(Class, String)
+     * 
+     * @param objectType The type of object to check
+     * @param fieldName The field to add up
+     * 
+     * @return The total- a Long for integer fields, a Double otherwise- or
+     *         null if there are no values
+     */
+    public abstract Number sum(Class<? extends Object> objectType, String fieldName);
+
 }
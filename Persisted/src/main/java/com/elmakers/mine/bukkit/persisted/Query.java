@@ -0,0 +1,81 @@
+package com.elmakers.mine.bukkit.persisted;
+
+import java.util.List;
+
+/**
+ * A filtered, ordered read of persisted objects.
+ * 
+ * Build a query with Persistence.query, add conditions and ordering, and then
+ * call list() to get the results. For example:
+ * 
+ * List<PlayerData> players = persistence.query(PlayerData.class).where("online", true).orderBy("lastLogin", true).limit(50).list();
+ * 
+ * Indexed fields make conditions on cached entities much cheaper- the first
+ * condition on an indexed field is used to find candidate objects, instead
+ * of checking every cached object.
+ * 
+ * @see Persistence#query(Class)
+ * 
+ * @author NathanWolf
+ * 
+ * @param <T> The type of object to query for
+ */
+public interface Query<T> {
+    /**
+     * Limit the number of results.
+     * 
+     * @param limit The maximum number of results, or 0 for no limit
+     * 
+     * @return This query
+     */
+    public Query<T> limit(int limit);
+
+    /**
+     * Run this query.
+     * 
+     * @return The matching objects, possibly empty
+     */
+    public List<T> list();
+
+    /**
+     * Skip a number of results, for paging.
+     * 
+     * @param offset The number of results to skip
+     * 
+     * @return This query
+     */
+    public Query<T> offset(int offset);
+
+    /**
+     * Order results by a field, lowest value first.
+     * 
+     * @param fieldName The field to order by
+     * 
+     * @return This query
+     */
+    public Query<T> orderBy(String fieldName);
+
+    /**
+     * Order results by a field.
+     * 
+     * @param fieldName The field to order by
+     * @param descending true to put the highest value first
+     * 
+     * @return This query
+     */
+    public Query<T> orderBy(String fieldName, boolean descending);
+
+    /**
+     * Only return objects with a specific field value.
+     * 
+     * Calling this more than once adds more conditions- objects must match
+     * all of them. For object references, the value may be the referenced
+     * object or its id.
+     * 
+     * @param fieldName The field to check
+     * @param value The value the field must be equal to
+     * 
+     * @return This query
+     */
+    public Query<T> where(String fieldName, Object value);
+}
@@ -11,6 +11,7 @@ import com.elmakers.mine.bukkit.persisted.Persistence;
 
 @PersistClass(schema = "global", name = "migration")
 public class MigrationStep extends Persisted {
+    String column;
     List<MigrationStep> dependencies;
     String entity;
     int id;
@@ -45,6 +46,10 @@ public class MigrationStep extends Persisted {
         // Figure out type from annotation
         if (info.reset()) {
             type = MigrationType.RESET;
+        } else if (info.column().length() > 0) {
+            column = info.column();
+            sqlData = info.statement();
+            type = MigrationType.BACKFILL;
         } else if (info.statement().length() > 0) {
             sqlData = info.statement();
             type = MigrationType.STATEMENT;
@@ -68,6 +73,11 @@ public class MigrationStep extends Persisted {
      */
     public void dependsOn(MigrationStep step) {}
 
+    @PersistField
+    public String getColumn() {
+        return column;
+    }
+
     @PersistField
     public List<MigrationStep> getDependencies() {
         return dependencies;
@@ -119,6 +129,10 @@ public class MigrationStep extends Persisted {
         return type;
     }
 
+    public void setColumn(String column) {
+        this.column = column;
+    }
+
     public void setDependencies(List<MigrationStep> dependencies) {
         this.dependencies = dependencies;
     }
@@ -1,5 +1,5 @@
 package com.elmakers.mine.bukkit.persistence.dao;
 
 public enum MigrationType {
-    AUTO, RESET, SCRIPT, STATEMENT
+    AUTO, BACKFILL, RESET, SCRIPT, STATEMENT
 }
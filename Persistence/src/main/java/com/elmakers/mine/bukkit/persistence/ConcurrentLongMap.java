@@ -0,0 +1,380 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A Map keyed by integral numbers, stored as primitive longs.
+ * 
+ * This is used to cache entities with int or long ids. Keys are kept in a
+ * long array using open addressing, so there is no boxed key or hash entry
+ * object kept around for each value.
+ * 
+ * Any Integer, Long, Short or Byte may be used as a key, and they are all
+ * equivalent- get(1) and get(1L) will find the same value.
+ * 
+ * Reads are lock-free, writes are synchronized. Like ConcurrentHashMap,
+ * iteration is weakly consistent and never throws
+ * ConcurrentModificationException. Null values are not allowed.
+ * 
+ * @author NathanWolf
+ * 
+ * @param <V> The type of value stored
+ */
+public class ConcurrentLongMap<V> extends AbstractMap<Object, V> {
+    protected static final int MIN_CAPACITY = 16;
+
+    // Marks a slot whose value has been removed. A null value marks a slot
+    // that has never been used, which ends a probe.
+    protected static final Object REMOVED = new Object();
+
+    protected static class Table {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<Object>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    protected volatile Table table = new Table(MIN_CAPACITY);
+    protected volatile int size = 0;
+    // Slots that are in use, including removed slots
+    protected int usedSlots = 0;
+
+    public ConcurrentLongMap() {
+    }
+
+    /**
+     * Check to see if a key can be stored in this map.
+     * 
+     * @param key The key to check
+     * 
+     * @return true if the key is an integral number
+     */
+    public static boolean isLongKey(Object key) {
+        return key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte;
+    }
+
+    protected static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+        usedSlots = 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<Object, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, V>>() {
+            @Override
+            public Iterator<Map.Entry<Object, V>> iterator() {
+                final TableIterator iterator = new TableIterator(table);
+                return new Iterator<Map.Entry<Object, V>>() {
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    public Map.Entry<Object, V> next() {
+                        V value = iterator.next();
+                        return new LongEntry(iterator.currentKey, value);
+                    }
+
+                    public void remove() {
+                        iterator.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public V get(Object key) {
+        if (!isLongKey(key)) {
+            return null;
+        }
+        return get(((Number) key).longValue());
+    }
+
+    /**
+     * Look up a value by a primitive key, with no boxing.
+     * 
+     * @param key The key to look for
+     * 
+     * @return The value, or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        Table current = table;
+        int index = hash(key) & current.mask;
+        for (int probes = 0; probes <= current.mask; probes++) {
+            // Read the value first- the key is always written before the
+            // value, so a non-null value means the key is valid.
+            Object value = current.values.get(index);
+            if (value == null) {
+                return null;
+            }
+            // Make sure the slot wasn't re-used while reading the key
+            if (value != REMOVED && current.keys.get(index) == key && current.values.get(index) == value) {
+                return (V) value;
+            }
+            index = (index + 1) & current.mask;
+        }
+        return null;
+    }
+
+    @Override
+    public V put(Object key, V value) {
+        if (!isLongKey(key)) {
+            throw new IllegalArgumentException("ConcurrentLongMap keys must be integral numbers");
+        }
+        return put(((Number) key).longValue(), value);
+    }
+
+    /**
+     * Store a value with a primitive key.
+     * 
+     * @param key The key to store the value under
+     * @param value The value, may not be null
+     * 
+     * @return The previous value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+
+        Table current = table;
+        int index = hash(key) & current.mask;
+        int freeIndex = -1;
+        for (int probes = 0; probes <= current.mask; probes++) {
+            Object existing = current.values.get(index);
+            if (existing == null) {
+                break;
+            }
+            if (existing == REMOVED) {
+                if (freeIndex < 0) {
+                    freeIndex = index;
+                }
+            } else if (current.keys.get(index) == key) {
+                current.values.set(index, value);
+                return (V) existing;
+            }
+            index = (index + 1) & current.mask;
+        }
+
+        if (freeIndex < 0) {
+            if ((usedSlots + 1) * 4 > (current.mask + 1) * 3) {
+                resize(size + 1);
+                return put(key, value);
+            }
+            freeIndex = index;
+            usedSlots++;
+        }
+
+        current.keys.set(freeIndex, key);
+        current.values.set(freeIndex, value);
+        size++;
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!isLongKey(key)) {
+            return null;
+        }
+        return remove(((Number) key).longValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(long key) {
+        Table current = table;
+        int index = hash(key) & current.mask;
+        for (int probes = 0; probes <= current.mask; probes++) {
+            Object existing = current.values.get(index);
+            if (existing == null) {
+                return null;
+            }
+            if (existing != REMOVED && current.keys.get(index) == key) {
+                current.values.set(index, REMOVED);
+                size--;
+                return (V) existing;
+            }
+            index = (index + 1) & current.mask;
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new TableIterator(table);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Rebuild the table, dropping removed slots.
+     * 
+     * Readers using the old table will still see its contents- the new table
+     * is published when it is complete.
+     * 
+     * @param minSize The number of entries the new table must hold
+     */
+    protected void resize(int minSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < minSize * 8) {
+            capacity <<= 1;
+        }
+
+        Table current = table;
+        Table resized = new Table(capacity);
+        int used = 0;
+        for (int i = 0; i <= current.mask; i++) {
+            Object value = current.values.get(i);
+            if (value == null || value == REMOVED) {
+                continue;
+            }
+            long key = current.keys.get(i);
+            int index = hash(key) & resized.mask;
+            while (resized.values.get(index) != null) {
+                index = (index + 1) & resized.mask;
+            }
+            resized.keys.set(index, key);
+            resized.values.set(index, value);
+            used++;
+        }
+
+        usedSlots = used;
+        table = resized;
+    }
+
+    protected class LongEntry implements Map.Entry<Object, V> {
+        protected final long key;
+        protected final V value;
+
+        public LongEntry(long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry<?, ?>)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            return Long.valueOf(key).equals(other.getKey()) && value.equals(other.getValue());
+        }
+
+        // As specified by Map.Entry, so entries can be compared with any
+        // other map's
+        @Override
+        public int hashCode() {
+            return (int) (key ^ key >>> 32) ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    protected class TableIterator implements Iterator<V> {
+        protected final Table iterating;
+        protected int index = -1;
+        protected int nextIndex = -1;
+        protected long currentKey;
+
+        public TableIterator(Table iterating) {
+            this.iterating = iterating;
+            advance();
+        }
+
+        protected void advance() {
+            nextIndex++;
+            while (nextIndex <= iterating.mask) {
+                Object value = iterating.values.get(nextIndex);
+                if (value != null && value != REMOVED) {
+                    return;
+                }
+                nextIndex++;
+            }
+        }
+
+        public boolean hasNext() {
+            return nextIndex <= iterating.mask;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V next() {
+            while (hasNext()) {
+                index = nextIndex;
+                Object value = iterating.values.get(index);
+                currentKey = iterating.keys.get(index);
+                advance();
+                if (value != null && value != REMOVED) {
+                    return (V) value;
+                }
+            }
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            if (index < 0) {
+                throw new IllegalStateException();
+            }
+            ConcurrentLongMap.this.remove(currentKey);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.elmakers.mine.bukkit.persisted.CachedObject;
+
+/**
+ * A secondary index over the cached objects of a persisted class.
+ * 
+ * This maps the value of a single field to the cached objects that have that
+ * value, so that looking up objects by that field doesn't mean checking every
+ * cached object.
+ * 
+ * Object references are indexed by the referenced object's data id, and
+ * integral numbers are normalized the same way cache keys are- so a lookup
+ * by an object or by its id, or by an int or a long, will find the same
+ * objects.
+ * 
+ * The index is built the first time it is used, since references may not be
+ * resolved until all entities have been loaded. After that, it is kept up to
+ * date as objects are put and removed.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class FieldIndex {
+    // Used as the indexed value for objects with a null field value
+    protected static final Object NULL_VALUE = new Object();
+
+    protected final PersistedField field;
+
+    // Indexed value -> (cache key -> cached object)
+    protected final Map<Object, Map<Object, CachedObject>> entries = new ConcurrentHashMap<Object, Map<Object, CachedObject>>();
+    // Cache key -> indexed value, used to find an object's old entry
+    protected final Map<Object, Object> values = new ConcurrentHashMap<Object, Object>();
+
+    protected volatile boolean built = false;
+
+    public FieldIndex(PersistedField field) {
+        this.field = field;
+    }
+
+    /**
+     * Index a newly cached object.
+     * 
+     * This does nothing if the index hasn't been built yet.
+     * 
+     * @param key The object's cache key
+     * @param cached The cache entry
+     */
+    public synchronized void add(Object key, CachedObject cached) {
+        if (built) {
+            index(key, cached);
+        }
+    }
+
+    /**
+     * Rebuild this index from the current cache contents.
+     * 
+     * @param cache The cache to index, keyed by cache key
+     */
+    public synchronized void build(Map<Object, CachedObject> cache) {
+        entries.clear();
+        values.clear();
+        for (Map.Entry<Object, CachedObject> entry : cache.entrySet()) {
+            index(entry.getKey(), entry.getValue());
+        }
+        built = true;
+    }
+
+    /**
+     * Forget all indexed objects.
+     * 
+     * The index will be re-built the next time it is used.
+     */
+    public synchronized void clear() {
+        built = false;
+        entries.clear();
+        values.clear();
+    }
+
+    /**
+     * Find the cached objects with a specific field value.
+     * 
+     * @param value The value to look for- an object, or an id, for reference
+     *            fields
+     * 
+     * @return The matching cache entries, possibly empty
+     */
+    public List<CachedObject> get(Object value) {
+        List<CachedObject> results = new ArrayList<CachedObject>();
+        Map<Object, CachedObject> matches = entries.get(getIndexValue(value));
+        if (matches != null) {
+            results.addAll(matches.values());
+        }
+        return results;
+    }
+
+    public PersistedField getField() {
+        return field;
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Remove an object from the index.
+     * 
+     * @param key The object's cache key
+     */
+    public synchronized void remove(Object key) {
+        Object value = values.remove(key);
+        if (value == null) {
+            return;
+        }
+        Map<Object, CachedObject> matches = entries.get(value);
+        if (matches != null) {
+            matches.remove(key);
+            if (matches.isEmpty()) {
+                entries.remove(value);
+            }
+        }
+    }
+
+    /**
+     * Re-index an object whose data may have changed.
+     * 
+     * @param key The object's cache key
+     * @param cached The cache entry
+     */
+    public synchronized void update(Object key, CachedObject cached) {
+        if (!built) {
+            return;
+        }
+        remove(key);
+        index(key, cached);
+    }
+
+    protected Object getIndexValue(Object value) {
+        value = PersistentClass.normalizeKey(PersistentClass.getFieldData(field, value));
+        return value == null ? NULL_VALUE : value;
+    }
+
+    protected void index(Object key, CachedObject cached) {
+        Object value = getIndexValue(field.get(cached.getObject()));
+        Map<Object, CachedObject> matches = entries.get(value);
+        if (matches == null) {
+            matches = new ConcurrentHashMap<Object, CachedObject>();
+            entries.put(value, matches);
+        }
+        matches.put(key, cached);
+        values.put(key, value);
+    }
+}
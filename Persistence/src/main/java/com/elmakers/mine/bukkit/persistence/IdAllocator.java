@@ -0,0 +1,99 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import com.elmakers.mine.bukkit.data.DataStore;
+
+/**
+ * Hands out autogenerated ids for a persisted class.
+ * 
+ * Ids are reserved from the data store in blocks, and then handed out from
+ * memory until the block runs out (a "hi-lo" allocator). The store is only
+ * hit once per block, and the table never has to be scanned to find the next
+ * free id- so this works whether or not the entity is fully cached.
+ * 
+ * If the store doesn't support id sequences, ids are handed out from memory,
+ * starting after the highest cached id.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class IdAllocator {
+    protected final PersistentClass owner;
+    protected final int blockSize;
+
+    protected long nextId = 0;
+    protected long limitId = 0;
+
+    public IdAllocator(PersistentClass owner, int blockSize) {
+        this.owner = owner;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Get a new, unused id.
+     * 
+     * This is safe to call from multiple threads.
+     * 
+     * @return The next id
+     */
+    public synchronized long allocate() {
+        if (nextId >= limitId) {
+            reserveBlock(blockSize);
+        }
+        return nextId++;
+    }
+
+    /**
+     * Get a contiguous range of new, unused ids.
+     * 
+     * This is used for bulk inserts- if the range doesn't fit in what's left
+     * of the current block, a new block big enough to hold it is reserved.
+     * 
+     * @param count The number of ids needed
+     * 
+     * @return The first id in the range
+     */
+    public synchronized long allocate(int count) {
+        if (limitId - nextId < count) {
+            reserveBlock(Math.max(blockSize, count));
+        }
+        long firstId = nextId;
+        nextId += count;
+        return firstId;
+    }
+
+    /**
+     * Forget any reserved ids.
+     * 
+     * Call this when the owning table has been dropped.
+     */
+    public synchronized void reset() {
+        nextId = 0;
+        limitId = 0;
+    }
+
+    protected void reserveBlock(int size) {
+        long firstId = -1;
+        DataStore store = owner.getDefaultStore();
+        PersistedField idField = owner.getIdField();
+        if (store != null && idField != null && store.connect()) {
+            firstId = store.allocateIds(owner.getTableName(), idField.getDataName(), size);
+        }
+
+        if (firstId <= 0) {
+            firstId = Math.max(limitId, getMaxCachedId() + 1);
+        }
+
+        nextId = firstId;
+        limitId = firstId + size;
+    }
+
+    protected long getMaxCachedId() {
+        long maxId = 0;
+        for (Object key : owner.cacheMap.keySet()) {
+            if (key instanceof Number) {
+                maxId = Math.max(maxId, ((Number) key).longValue());
+            }
+        }
+        return maxId;
+    }
+}
@@ -0,0 +1,104 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A List proxy used for lazy list fields.
+ * 
+ * The list's data is read from the store the first time it is used. Any
+ * change to the list marks it as modified, so that its data will be written
+ * on the next save- unmodified lazy lists are never written, or even loaded,
+ * by a save.
+ * 
+ * @author NathanWolf
+ * 
+ * @param <E> The type of list item
+ */
+public class LazyList<E> extends AbstractList<E> {
+    protected final PersistedList listField;
+    protected final Object owner;
+
+    protected List<E> contents = null;
+    protected volatile boolean modified = false;
+
+    public LazyList(PersistedList listField, Object owner) {
+        this.listField = listField;
+        this.owner = owner;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        getContents().add(index, element);
+        modified = true;
+        modCount++;
+    }
+
+    @Override
+    public E get(int index) {
+        return getContents().get(index);
+    }
+
+    /**
+     * Check to see if this list's data has been read yet.
+     * 
+     * @return true if loaded
+     */
+    public synchronized boolean isLoaded() {
+        return contents != null;
+    }
+
+    /**
+     * Check to see if this list has been changed since it was loaded.
+     * 
+     * @return true if modified
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Set or clear this list's modified flag.
+     * 
+     * This is cleared when the list's data is written, and set again if the
+     * write fails.
+     * 
+     * @param modified Whether the list needs to be written
+     */
+    public void setModified(boolean modified) {
+        this.modified = modified;
+    }
+
+    @Override
+    public E remove(int index) {
+        E removed = getContents().remove(index);
+        modified = true;
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public E set(int index, E element) {
+        E replaced = getContents().set(index, element);
+        modified = true;
+        modCount++;
+        return replaced;
+    }
+
+    @Override
+    public int size() {
+        return getContents().size();
+    }
+
+    @SuppressWarnings("unchecked")
+    protected synchronized List<E> getContents() {
+        if (contents == null) {
+            contents = new ArrayList<E>();
+            for (Object item : listField.loadList(owner)) {
+                contents.add((E) item);
+            }
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,136 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.elmakers.com.bukkit.data.exception.InvalidDataException;
+import com.elmakers.mine.bukkit.data.DataField;
+import com.elmakers.mine.bukkit.data.DataRow;
+import com.elmakers.mine.bukkit.data.DataRowEncoder;
+import com.elmakers.mine.bukkit.data.DataTable;
+import com.elmakers.mine.bukkit.data.DataType;
+import com.elmakers.mine.bukkit.persisted.FieldInfo;
+import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassException;
+
+/**
+ * A variant of PersistedList that packs a whole list into a single binary
+ * column, instead of a sub-table.
+ * 
+ * Each item is turned into a row of data, the same as it would be for a
+ * sub-table, and the rows are then encoded together with DataRowEncoder.
+ * This makes saving and loading a large list a single row write or read.
+ * 
+ * Only lists of data values or contained objects may be binary- entity
+ * references would need to be resolved after loading.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class PersistedBinaryList extends PersistedList {
+    public PersistedBinaryList(PersistedBinaryList copy) {
+        super(copy);
+    }
+
+    @Override
+    public PersistedBinaryList clone() {
+        PersistedBinaryList field = new PersistedBinaryList(this);
+        return field;
+    }
+
+    public PersistedBinaryList(FieldInfo fieldInfo, Field field, PersistentClass owningClass) {
+        super(fieldInfo, field, owningClass);
+    }
+
+    public PersistedBinaryList(FieldInfo fieldInfo, Method getter, Method setter, PersistentClass owningClass) {
+        super(fieldInfo, getter, setter, owningClass);
+    }
+
+    @Override
+    public void bind() throws InvalidPersistedClassException {
+        super.bind();
+
+        if (referenceType != null && !isContained()) {
+            log.warning("Persistence: " + owningClass.getSchemaName() + "." + owningClass.getTableName() + "." + getDataName() + ", binary lists of entities must be contained");
+            referenceType = null;
+        }
+    }
+
+    @Override
+    public DataType getDataType() {
+        return DataType.BLOB;
+    }
+
+    @Override
+    public void populateHeader(DataTable dataTable, PersistedField container) {
+        DataRow headerRow = dataTable.getHeader();
+        DataField field = new DataField(getDataName(), DataType.BLOB);
+        headerRow.add(field);
+    }
+
+    @Override
+    public void save(DataRow row, Object o) throws InvalidDataException {
+        byte[] data = null;
+        List<? extends Object> list = null;
+        if (o != null) {
+            list = getList(o);
+        }
+
+        if (list != null) {
+            DataTable itemTable = new DataTable(tableName);
+            for (Object item : list) {
+                DataRow itemRow = new DataRow(itemTable);
+                if (referenceType == null) {
+                    itemRow.add(new DataField(name, listDataType, item));
+                } else {
+                    referenceType.populate(itemRow, item);
+                }
+                itemTable.addRow(itemRow);
+            }
+            data = DataRowEncoder.encode(itemTable.getRows());
+        }
+
+        row.add(new DataField(getDataName(), DataType.BLOB, data));
+    }
+
+    @Override
+    public void load(DataRow row, Object o) throws InvalidDataException {
+        DataField dataField = row.get(getDataName());
+        if (dataField == null) {
+            return;
+        }
+
+        Object data = dataField.getValue();
+        if (!(data instanceof byte[])) {
+            set(o, null);
+            return;
+        }
+
+        DataTable itemTable = new DataTable(tableName);
+        List<DataRow> itemRows = DataRowEncoder.decode((byte[]) data, itemTable);
+        ArrayList<Object> list = new ArrayList<Object>(itemRows.size());
+
+        // Contained items may reference entities, which are bound later- hold
+        // the list back until they are, so the owner gets complete items.
+        PersistedObject.beginDefer();
+        try {
+            for (DataRow itemRow : itemRows) {
+                if (referenceType == null) {
+                    DataField itemField = itemRow.get(name);
+                    list.add(itemField == null ? null : itemField.getValue(listType));
+                } else {
+                    list.add(referenceType.createInstance(itemRow));
+                }
+            }
+            PersistedObject.deferSet(this, o, list);
+        } finally {
+            PersistedObject.endDefer();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected List<? extends Object> getList(Object o) {
+        return (List<? extends Object>) get(o);
+    }
+}
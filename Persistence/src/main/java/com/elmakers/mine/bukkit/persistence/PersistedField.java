@@ -10,6 +10,7 @@ import com.elmakers.mine.bukkit.data.DataField;
 import com.elmakers.mine.bukkit.data.DataRow;
 import com.elmakers.mine.bukkit.data.DataTable;
 import com.elmakers.mine.bukkit.data.DataType;
+import com.elmakers.mine.bukkit.persisted.FieldEncoding;
 import com.elmakers.mine.bukkit.persisted.FieldInfo;
 import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassException;
 
@@ -223,6 +224,8 @@ public class PersistedField {
 
         if (dataType == DataType.OBJECT) {
             pField = new PersistedObject(fieldInfo, field, owningClass);
+        } else if (dataType == DataType.LIST && fieldInfo.getEncoding() == FieldEncoding.BINARY) {
+            pField = new PersistedBinaryList(fieldInfo, field, owningClass);
         } else if (dataType == DataType.LIST) {
             pField = new PersistedList(fieldInfo, field, owningClass);
         } else if (dataType != DataType.NULL) {
@@ -282,6 +285,8 @@ public class PersistedField {
 
         if (dataType == DataType.OBJECT) {
             pField = new PersistedObject(fieldInfo, getter, setter, owningClass);
+        } else if (dataType == DataType.LIST && fieldInfo.getEncoding() == FieldEncoding.BINARY) {
+            pField = new PersistedBinaryList(fieldInfo, getter, setter, owningClass);
         } else if (dataType == DataType.LIST) {
             pField = new PersistedList(fieldInfo, getter, setter, owningClass);
         } else if (dataType != DataType.NULL) {
@@ -434,6 +439,14 @@ public class PersistedField {
         return fieldInfo.isIdField();
     }
 
+    public boolean isIndexed() {
+        return fieldInfo.isIndexed();
+    }
+
+    public boolean isLazy() {
+        return fieldInfo.isLazy();
+    }
+
     public boolean isReadOnly() {
         return fieldInfo.isReadOnly();
     }
@@ -10,7 +10,9 @@ import java.util.List;
 
 import com.elmakers.com.bukkit.data.exception.InvalidDataException;
 import com.elmakers.mine.bukkit.data.DataField;
+import com.elmakers.mine.bukkit.data.DataQuery;
 import com.elmakers.mine.bukkit.data.DataRow;
+import com.elmakers.mine.bukkit.data.DataStore;
 import com.elmakers.mine.bukkit.data.DataTable;
 import com.elmakers.mine.bukkit.data.DataType;
 import com.elmakers.mine.bukkit.persisted.FieldInfo;
@@ -244,43 +246,16 @@ public class PersistedList extends PersistedField implements PersistedReference
             objectLists.put(instanceId, listData);
         }
 
-        // Determine column names
-        String entityIdName = owningClass.getContainedIdName();
-        String dataIdName = "";
-
-        if (referenceType == null) {
-            dataIdName = getDataName();
-        } else if (isContained()) {
-            dataIdName = owningClass.getContainedIdName(this);
-        } else {
-            dataIdName = getReferenceIdName();
-        }
-
         // Load each row of list data, one row at a time
         // Add the data from each row to the proper instances' list
+        String entityIdName = owningClass.getContainedIdName();
+        String dataIdName = getDataIdName();
         for (DataRow row : subTable.getRows()) {
             DataField entityIdField = row.get(entityIdName);
             Object entityId = entityIdField.getValue();
             List<Object> list = objectLists.get(entityId);
             if (list != null) {
-                if (referenceType == null) {
-                    DataField dataField = row.get(dataIdName);
-                    Object data = dataField.getValue();
-                    list.add(data);
-                } else if (isContained()) {
-                    Object newInstance = null;
-                    try {
-                        newInstance = referenceType.createInstance(row);
-                    } catch (InvalidDataException e) {
-                    }
-                    if (newInstance != null) {
-                        list.add(newInstance);
-                    }
-                } else {
-                    DataField dataIdField = row.get(dataIdName);
-                    Object dataId = dataIdField.getValue();
-                    list.add(dataId);
-                }
+                readItem(row, dataIdName, list);
             }
         }
 
@@ -307,6 +282,141 @@ public class PersistedList extends PersistedField implements PersistedReference
         }
     }
 
+    /**
+     * Read the list data for a single object, right away.
+     * 
+     * This is used to load lazy lists. Only the owning object's rows are read,
+     * if the store supports it. Object references are resolved immediately.
+     * 
+     * @param instance The object that owns the list
+     * 
+     * @return The list data, possibly empty
+     */
+    public List<Object> loadList(Object instance) {
+        List<Object> listData = new ArrayList<Object>();
+        DataStore store = owningClass.getDefaultStore();
+        if (store == null || !store.connect()) {
+            return listData;
+        }
+
+        String entityIdName = owningClass.getContainedIdName();
+        Object entityId = PersistentClass.normalizeKey(owningClass.getIdData(instance));
+        DataTable subTable = new DataTable(tableName);
+        DataQuery query = new DataQuery();
+        query.addCondition(new DataField(entityIdName, owningClass.getIdField().getDataType(), owningClass.getIdData(instance)));
+        if (!store.query(subTable, query)) {
+            subTable = new DataTable(tableName);
+            store.load(subTable);
+        }
+
+        String dataIdName = getDataIdName();
+        for (DataRow row : subTable.getRows()) {
+            DataField entityIdField = row.get(entityIdName);
+            if (entityIdField != null && entityId != null && entityId.equals(PersistentClass.normalizeKey(entityIdField.getValue()))) {
+                readItem(row, dataIdName, listData);
+            }
+        }
+
+        if (referenceType != null && !isContained()) {
+            for (int i = 0; i < listData.size(); i++) {
+                Object id = listData.get(i);
+                listData.set(i, id == null ? null : referenceType.get(id));
+            }
+        }
+
+        return listData;
+    }
+
+    /**
+     * Check to see if an object's list can be skipped when saving.
+     * 
+     * This is true for lazy lists that haven't been changed since they were
+     * loaded- or that haven't been loaded at all.
+     * 
+     * @param instance The object that owns the list
+     * 
+     * @return true if the list data in the store is already up to date
+     */
+    public boolean isUnmodified(Object instance) {
+        if (!isLazy() || instance == null) {
+            return false;
+        }
+        Object list = get(instance);
+        return list instanceof LazyList<?> && !((LazyList<?>) list).isModified();
+    }
+
+    /**
+     * Set or clear the modified flag of an object's lazy list.
+     * 
+     * This does nothing if the object's list is not a lazy list.
+     * 
+     * @param instance The object that owns the list
+     * @param modified Whether the list needs to be written
+     */
+    public void setModified(Object instance, boolean modified) {
+        if (!isLazy() || instance == null) {
+            return;
+        }
+        Object list = get(instance);
+        if (list instanceof LazyList<?>) {
+            ((LazyList<?>) list).setModified(modified);
+        }
+    }
+
+    /**
+     * Replace an object's list with a lazy proxy, which will load the list's
+     * data when it is first used.
+     * 
+     * @param instance The object to bind
+     */
+    public void bindLazy(Object instance) {
+        try {
+            set(instance, new LazyList<Object>(this, instance));
+        } catch (InvalidDataException e) {
+            log.warning("Persistence: Can't bind lazy list " + owningClass.getSchemaName() + "." + owningClass.getTableName() + "." + getDataName() + ": " + e.getMessage());
+        }
+    }
+
+    protected String getDataIdName() {
+        if (referenceType == null) {
+            return getDataName();
+        } else if (isContained()) {
+            return owningClass.getContainedIdName(this);
+        }
+        return getReferenceIdName();
+    }
+
+    /**
+     * Add the data from a single list row to a list.
+     * 
+     * For lists of entities, the referenced id is added, and must be resolved
+     * later.
+     * 
+     * @param row The row to read
+     * @param dataIdName The column holding the list data
+     * @param list The list to add to
+     */
+    protected void readItem(DataRow row, String dataIdName, List<Object> list) {
+        if (referenceType == null) {
+            DataField dataField = row.get(dataIdName);
+            Object data = dataField.getValue();
+            list.add(data);
+        } else if (isContained()) {
+            Object newInstance = null;
+            try {
+                newInstance = referenceType.createInstance(row);
+            } catch (InvalidDataException e) {
+            }
+            if (newInstance != null) {
+                list.add(newInstance);
+            }
+        } else {
+            DataField dataIdField = row.get(dataIdName);
+            Object dataId = dataIdField.getValue();
+            list.add(dataId);
+        }
+    }
+
     public static void endDefer() {
         deferStackDepth--;
         if (deferStackDepth > 0) {
@@ -28,6 +28,7 @@ import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassExcep
 public class PersistedObject extends PersistedField implements PersistedReference {
     private static int deferStackDepth = 0;
     private final static List<DeferredReference> deferredReferences = new ArrayList<DeferredReference>();
+    private final static List<DeferredValue> deferredValues = new ArrayList<DeferredValue>();
 
     protected PersistentClass referenceType = null;
 
@@ -166,7 +167,7 @@ public class PersistedObject extends PersistedField implements PersistedReferenc
         if (isContained()) {
             Object newInstance = null;
             try {
-                referenceType.createInstance(row);
+                newInstance = referenceType.createInstance(row);
             } catch (InvalidDataException e) {
             }
             set(o, newInstance);
@@ -190,6 +191,23 @@ public class PersistedObject extends PersistedField implements PersistedReferenc
         deferStackDepth++;
     }
 
+    /**
+     * Set a field's value once all deferred references have been bound.
+     * 
+     * This is for values built from objects that may hold deferred
+     * references, such as the items of a binary list- the owner should not
+     * see them until they're complete.
+     * 
+     * This must be called between beginDefer() and endDefer().
+     * 
+     * @param field The field to set
+     * @param o The object to set the field on
+     * @param value The value to set
+     */
+    public static void deferSet(PersistedField field, Object o, Object value) {
+        deferredValues.add(new DeferredValue(field, o, value));
+    }
+
     public static void endDefer() {
         deferStackDepth--;
         if (deferStackDepth > 0) {
@@ -200,6 +218,12 @@ public class PersistedObject extends PersistedField implements PersistedReferenc
         undefer.addAll(deferredReferences);
         deferredReferences.clear();
 
+        // Take the values now too- binding a reference may load another class,
+        // and its endDefer() mustn't set them before these references are bound.
+        List<DeferredValue> values = new ArrayList<DeferredValue>();
+        values.addAll(deferredValues);
+        deferredValues.clear();
+
         for (DeferredReference ref : undefer) {
             Object reference = ref.referenceField.referenceType.get(ref.referenceId);
             try {
@@ -216,6 +240,25 @@ public class PersistedObject extends PersistedField implements PersistedReferenc
             }
         }
 
+        for (DeferredValue value : values) {
+            try {
+                value.field.set(value.object, value.value);
+            } catch (InvalidDataException e) {
+                log.warning("Persistence: error setting " + value.field.getDataName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    static class DeferredValue {
+        public PersistedField field;
+        public Object object;
+        public Object value;
+
+        public DeferredValue(PersistedField field, Object o, Object value) {
+            this.field = field;
+            object = o;
+            this.value = value;
+        }
     }
 
     class DeferredReference {
@@ -1,6 +1,9 @@
 package com.elmakers.mine.bukkit.persistence;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -8,12 +11,15 @@ import java.util.logging.Logger;
 
 import org.bukkit.Server;
 
+import com.elmakers.mine.bukkit.data.AggregateFunction;
 import com.elmakers.mine.bukkit.data.DataStore;
 import com.elmakers.mine.bukkit.data.DataStoreProvider;
 import com.elmakers.mine.bukkit.persisted.EntityInfo;
 import com.elmakers.mine.bukkit.persisted.Migrate;
 import com.elmakers.mine.bukkit.persisted.MigrationInfo;
+import com.elmakers.mine.bukkit.persisted.ObjectVisitor;
 import com.elmakers.mine.bukkit.persisted.PersistClass;
+import com.elmakers.mine.bukkit.persisted.Query;
 import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassException;
 
 /**
@@ -65,6 +71,68 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
         return log;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#count(java.lang.Class)
+     */
+    public int count(Class<? extends Object> objectType) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return 0;
+        }
+
+        return persistedClass.count(objectType);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#forEach(java.lang.Class,
+     * com.elmakers.mine.bukkit.persisted.ObjectVisitor)
+     */
+    public <T> void forEach(Class<T> objectType, ObjectVisitor<T> visitor) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return;
+        }
+
+        persistedClass.forEach(objectType, visitor);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#iterate(java.lang.Class)
+     */
+    public <T> Iterable<T> iterate(Class<T> objectType) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return new ArrayList<T>();
+        }
+
+        return persistedClass.<T> iterate(objectType);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#getBy(java.lang.Class,
+     * java.lang.String, java.lang.Object)
+     */
+    public <T> List<T> getBy(Class<T> objectType, String fieldName, Object value) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return new ArrayList<T>();
+        }
+
+        return persistedClass.getBy(objectType, fieldName, value);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -73,18 +141,71 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
      * java.lang.Class)
      */
     public <T> void getAll(List<T> objects, Class<T> objectType) {
-        PersistentClass persistedClass = null;
-        try {
-            persistedClass = getPersistedClass(objectType);
-        } catch (InvalidPersistedClassException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        PersistentClass persistedClass = findPersistedClass(objectType);
         if (persistedClass == null) {
             return;
         }
 
-        persistedClass.getAll(objects);
+        persistedClass.getAll(objects, objectType);
+    }
+
+    /**
+     * Count objects, grouped by the value of one of their fields.
+     * 
+     * @param objectType The type of object to count
+     * @param fieldName The field to group by
+     * 
+     * @return A map of field values to counts. This is empty if objectType
+     *         can't be persisted- a warning is logged in that case.
+     */
+    public Map<Object, Integer> groupBy(Class<? extends Object> objectType, String fieldName) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return new HashMap<Object, Integer>();
+        }
+
+        Map<Object, Integer> counts = new HashMap<Object, Integer>();
+        Map<Object, Object> results = persistedClass.aggregate(objectType, AggregateFunction.COUNT, null, fieldName);
+        for (Map.Entry<Object, Object> result : results.entrySet()) {
+            counts.put(result.getKey(), (Integer) result.getValue());
+        }
+        return counts;
+    }
+
+    /**
+     * Find the largest value of a field, over all objects of a type.
+     * 
+     * @param objectType The type of object to search
+     * @param fieldName The field to compare
+     * 
+     * @return The largest value, or null if there are no objects or if
+     *         objectType can't be persisted- a warning is logged in that case.
+     */
+    public Object max(Class<? extends Object> objectType, String fieldName) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return null;
+        }
+
+        return persistedClass.aggregate(objectType, AggregateFunction.MAX, fieldName);
+    }
+
+    /**
+     * Find the smallest value of a field, over all objects of a type.
+     * 
+     * @param objectType The type of object to search
+     * @param fieldName The field to compare
+     * 
+     * @return The smallest value, or null if there are no objects or if
+     *         objectType can't be persisted- a warning is logged in that case.
+     */
+    public Object min(Class<? extends Object> objectType, String fieldName) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return null;
+        }
+
+        return persistedClass.aggregate(objectType, AggregateFunction.MIN, fieldName);
     }
 
     /*
@@ -95,13 +216,7 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
      * )
      */
     public void remove(Object removeObject) {
-        PersistentClass persistedClass = null;
-        try {
-            persistedClass = getPersistedClass(removeObject.getClass());
-        } catch (InvalidPersistedClassException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        PersistentClass persistedClass = findPersistedClass(removeObject.getClass());
         if (persistedClass == null) {
             return;
         }
@@ -109,6 +224,24 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
         persistedClass.remove(removeObject);
     }
 
+    /**
+     * Add up the values of a numeric field, over all objects of a type.
+     * 
+     * @param objectType The type of object to total
+     * @param fieldName The field to add up
+     * 
+     * @return The total, or null if objectType can't be persisted- a warning
+     *         is logged in that case.
+     */
+    public Number sum(Class<? extends Object> objectType, String fieldName) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return null;
+        }
+
+        return (Number) persistedClass.aggregate(objectType, AggregateFunction.SUM, fieldName);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -117,13 +250,7 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
      * java.lang.Class)
      */
     public <T> void putAll(List<T> objects, Class<T> objectType) {
-        PersistentClass persistedClass = null;
-        try {
-            persistedClass = getPersistedClass(objectType);
-        } catch (InvalidPersistedClassException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        PersistentClass persistedClass = findPersistedClass(objectType);
         if (persistedClass == null) {
             return;
         }
@@ -131,6 +258,28 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
         persistedClass.putAll(objects);
     }
 
+    /**
+     * Write a large number of objects straight to the data store.
+     * 
+     * Use this to import data- the objects are written in batches, and are
+     * not kept in the cache.
+     * 
+     * @param <T> The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param objects The objects to write
+     * @param objectType The type of object to import
+     * 
+     * @return The number of objects written, or -1 on failure
+     */
+    public <T> int importAll(Iterable<T> objects, Class<T> objectType) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return -1;
+        }
+
+        return persistedClass.importAll(objects);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -140,13 +289,7 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
      */
     @SuppressWarnings("unchecked")
     public <T> T get(Object id, Class<T> objectType) {
-        PersistentClass persistedClass = null;
-        try {
-            persistedClass = getPersistedClass(objectType);
-        } catch (InvalidPersistedClassException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        PersistentClass persistedClass = findPersistedClass(objectType);
         if (persistedClass == null) {
             return null;
         }
@@ -158,6 +301,22 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
         return (T) result;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#project(java.lang.Class,
+     * java.lang.String[])
+     */
+    public List<Object[]> project(Class<? extends Object> objectType, String... fieldNames) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+        if (persistedClass == null) {
+            return new ArrayList<Object[]>();
+        }
+
+        return persistedClass.project(objectType, Arrays.asList(fieldNames), 0);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -169,13 +328,7 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
             return false;
         }
 
-        PersistentClass persistedClass = null;
-        try {
-            persistedClass = getPersistedClass(persist.getClass());
-        } catch (InvalidPersistedClassException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+        PersistentClass persistedClass = findPersistedClass(persist.getClass());
         if (persistedClass == null) {
             return false;
         }
@@ -185,6 +338,95 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
         return true;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#query(java.lang.Class)
+     */
+    public <T> Query<T> query(Class<T> objectType) {
+        PersistentClass persistedClass = findPersistedClass(objectType);
+
+        return new PersistenceQuery<T>(persistedClass, objectType);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#flush(java.lang.Object)
+     */
+    public boolean flush(Object persist) {
+        if (persist == null) {
+            return false;
+        }
+
+        List<Object> objects = new ArrayList<Object>();
+        objects.add(persist);
+        return flush(objects);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#flush(java.util.Collection
+     * )
+     */
+    public boolean flush(Collection<? extends Object> objects) {
+        Map<PersistentClass, List<Object>> classObjects = new HashMap<PersistentClass, List<Object>>();
+        List<DataStore> stores = new ArrayList<DataStore>();
+        for (Object object : objects) {
+            PersistentClass persistedClass = findPersistedClass(object.getClass());
+            if (persistedClass == null) {
+                return false;
+            }
+
+            List<Object> flushObjects = classObjects.get(persistedClass);
+            if (flushObjects == null) {
+                flushObjects = new ArrayList<Object>();
+                classObjects.put(persistedClass, flushObjects);
+
+                DataStore store = persistedClass.getDefaultStore();
+                if (store != null && !stores.contains(store)) {
+                    stores.add(store);
+                }
+            }
+            flushObjects.add(object);
+        }
+
+        // Wrap everything in one transaction per store- each class will
+        // nest its own transaction inside of this one.
+        List<DataStore> transactions = new ArrayList<DataStore>();
+        for (DataStore store : stores) {
+            if (store.connect() && store.beginTransaction()) {
+                transactions.add(store);
+            }
+        }
+
+        boolean success = true;
+        for (PersistentClass persistedClass : classObjects.keySet()) {
+            success = persistedClass.flush(classObjects.get(persistedClass)) && success;
+        }
+
+        for (DataStore store : transactions) {
+            if (success) {
+                success = store.commit();
+            } else {
+                store.rollback();
+            }
+        }
+
+        // A rollback may have undone writes from classes that succeeded
+        if (!success) {
+            for (PersistentClass persistedClass : classObjects.keySet()) {
+                persistedClass.markUnsaved(classObjects.get(persistedClass));
+            }
+        }
+
+        return success;
+    }
+
     /**
      * Force a save of all cached data.
      * 
@@ -238,6 +480,26 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
         return schemaList;
     }
 
+    /**
+     * Retrieve or create a persisted class, logging a warning if the class
+     * can't be persisted.
+     * 
+     * The data access methods use this, and return an empty result for
+     * classes that can't be persisted rather than throwing.
+     * 
+     * @param persistClass The annotated Class to persist
+     * 
+     * @return The persisted class definition, or null if failure
+     */
+    protected PersistentClass findPersistedClass(Class<? extends Object> persistClass) {
+        try {
+            return getPersistedClass(persistClass);
+        } catch (InvalidPersistedClassException e) {
+            log.warning("Persistence: Can't persist class " + persistClass.getName() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
     /**
      * Retrieve or create a persisted class, using the annotations built into
      * the class.
@@ -261,7 +523,15 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
             Migrate migrationAnnotation = persistClass.getAnnotation(Migrate.class);
 
             if (entityAnnotation == null) {
-                throw new InvalidPersistedClassException(persistClass, "Class does not have the @PersistClass annotation");
+                // Subclasses of a persisted class share its table and cache,
+                // if it allows them
+                persistedClass = getParentPersistedClass(persistClass);
+                if (persistedClass == null) {
+                    throw new InvalidPersistedClassException(persistClass, "Class does not have the @PersistClass annotation");
+                }
+                persistedClass.addSubclass(persistClass);
+                persistedClassMap.put(persistClass, persistedClass);
+                return persistedClass;
             }
 
             persistedClass = getPersistedClass(persistClass, new EntityInfo(entityAnnotation));
@@ -275,6 +545,29 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
         return persistedClass;
     }
 
+    /**
+     * Find the persisted class for the nearest persisted superclass of a
+     * class.
+     * 
+     * @param subClass The class to look up
+     * 
+     * @return The parent's persisted class, or null if there isn't one
+     */
+    protected PersistentClass getParentPersistedClass(Class<? extends Object> subClass) throws InvalidPersistedClassException {
+        Class<? extends Object> parentClass = subClass.getSuperclass();
+        while (parentClass != null && parentClass != Object.class) {
+            PersistentClass persistedClass = persistedClassMap.get(parentClass);
+            if (persistedClass != null) {
+                return persistedClass;
+            }
+            if (parentClass.getAnnotation(PersistClass.class) != null) {
+                return getPersistedClass(parentClass);
+            }
+            parentClass = parentClass.getSuperclass();
+        }
+        return null;
+    }
+
     protected PersistentClass createPersistedClass(Class<? extends Object> persistType, EntityInfo entityInfo) throws InvalidPersistedClassException {
         PersistentClass persistedClass = new PersistentClass(this, entityInfo);
         if (!persistedClass.bind(persistType)) {
@@ -327,8 +620,7 @@ public class Persistence implements com.elmakers.mine.bukkit.persisted.Persisten
                     try {
                         persistedClass = createPersistedClass(persistType, entityInfo);
                     } catch (InvalidPersistedClassException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
+                        log.warning("Persistence: Can't persist class " + persistType.getName() + ": " + e.getMessage());
                     }
                 }
             }
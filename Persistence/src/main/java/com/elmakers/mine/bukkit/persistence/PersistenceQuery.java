@@ -0,0 +1,94 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.elmakers.mine.bukkit.persisted.Query;
+
+/**
+ * A query for the instances of a single persisted class.
+ * 
+ * This just records the conditions, ordering and limit- the PersistentClass
+ * does the work when list() is called.
+ * 
+ * @author NathanWolf
+ * 
+ * @param <T> The type of object to query for
+ */
+public class PersistenceQuery<T> implements Query<T> {
+    protected final PersistentClass persistedClass;
+    protected final Class<T> objectType;
+
+    protected List<String> fieldNames = new ArrayList<String>();
+    protected List<Object> values = new ArrayList<Object>();
+    protected String orderBy = null;
+    protected boolean descending = false;
+    protected int limit = 0;
+    protected int offset = 0;
+
+    public PersistenceQuery(PersistentClass persistedClass, Class<T> objectType) {
+        this.persistedClass = persistedClass;
+        this.objectType = objectType;
+    }
+
+    public List<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public Class<T> getObjectType() {
+        return objectType;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    public List<Object> getValues() {
+        return values;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public Query<T> limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public List<T> list() {
+        if (persistedClass == null) {
+            return new ArrayList<T>();
+        }
+        return persistedClass.query(this);
+    }
+
+    public Query<T> offset(int offset) {
+        this.offset = offset;
+        return this;
+    }
+
+    public Query<T> orderBy(String fieldName) {
+        return orderBy(fieldName, false);
+    }
+
+    public Query<T> orderBy(String fieldName, boolean descending) {
+        this.orderBy = fieldName;
+        this.descending = descending;
+        return this;
+    }
+
+    public Query<T> where(String fieldName, Object value) {
+        fieldNames.add(fieldName);
+        values.add(value);
+        return this;
+    }
+}
@@ -3,27 +3,42 @@ package com.elmakers.mine.bukkit.persistence;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.bukkit.Server;
 
 import com.elmakers.com.bukkit.data.exception.InvalidDataException;
+import com.elmakers.mine.bukkit.data.AggregateFunction;
 import com.elmakers.mine.bukkit.data.DataField;
+import com.elmakers.mine.bukkit.data.DataQuery;
 import com.elmakers.mine.bukkit.data.DataRow;
 import com.elmakers.mine.bukkit.data.DataStore;
 import com.elmakers.mine.bukkit.data.DataTable;
 import com.elmakers.mine.bukkit.data.DataType;
 import com.elmakers.mine.bukkit.persisted.CachedObject;
 import com.elmakers.mine.bukkit.persisted.EntityInfo;
+import com.elmakers.mine.bukkit.persisted.FieldEncoding;
 import com.elmakers.mine.bukkit.persisted.FieldInfo;
 import com.elmakers.mine.bukkit.persisted.MigrationInfo;
+import com.elmakers.mine.bukkit.persisted.ObjectVisitor;
 import com.elmakers.mine.bukkit.persisted.PersistField;
 import com.elmakers.mine.bukkit.persisted.PersistedClass;
 import com.elmakers.mine.bukkit.persisted.PersistedReference;
+import com.elmakers.mine.bukkit.persistence.dao.MigrationStep;
+import com.elmakers.mine.bukkit.persistence.dao.MigrationType;
 import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassException;
 
 /**
@@ -44,14 +59,45 @@ public class PersistentClass implements PersistedClass {
     protected LoadState loadState = LoadState.UNLOADED;
 
     protected boolean cacheObjects = false;
-    protected long maxId = 1;
 
-    protected Map<Object, CachedObject> cacheMap = new ConcurrentHashMap<Object, CachedObject>();
-    protected Map<Object, CachedObject> concreteIdMap = new ConcurrentHashMap<Object, CachedObject>();
-    protected Map<Object, CachedObject> removedMap = new ConcurrentHashMap<Object, CachedObject>();
+    // Autogenerated ids are reserved from the store this many at a time
+    protected static int idBlockSize = 100;
+    protected final IdAllocator idAllocator = new IdAllocator(this, idBlockSize);
+
+    // Number of objects to write at a time when importing
+    protected static int importBatchSize = 500;
+
+    // Number of rows to update at a time when backfilling a column
+    protected static int migrationBatchSize = 1000;
+
+    // Save statistics- objects written, and unchanged objects skipped
+    protected int savedCount = 0;
+    protected int skippedCount = 0;
+
+    // Cached objects, keyed by their canonical data id- see getCacheKey.
+    protected volatile Map<Object, CachedObject> cacheMap = new ConcurrentHashMap<Object, CachedObject>();
+    // For classes that use another object as their id, cached objects keyed
+    // by that object. Always empty for other classes.
+    protected Map<Object, CachedObject> objectIdMap = new ConcurrentHashMap<Object, CachedObject>();
+    protected volatile Map<Object, CachedObject> removedMap = new ConcurrentHashMap<Object, CachedObject>();
+
+    // The whole cache as one partition, for classes that aren't subclassed
+    protected volatile List<Map<Object, CachedObject>> cachePartitions = Collections.singletonList(cacheMap);
+
+    // Cached objects, partitioned by their concrete class. Only used for
+    // subclassed classes- see isSubclassed.
+    protected ConcurrentHashMap<Class<? extends Object>, Map<Object, CachedObject>> partitionMap = new ConcurrentHashMap<Class<? extends Object>, Map<Object, CachedObject>>();
+
+    // Secondary indexes on cached objects, keyed by field name
+    protected Map<String, FieldIndex> indexMap = new HashMap<String, FieldIndex>();
 
     protected Class<? extends Object> persistClass = null;
 
+    // For classes that allow subclasses, the column holding each object's
+    // class name, and the subclasses registered so far, by name
+    protected static final String SUBCLASS_COLUMN = "persistClass";
+    protected Map<String, Class<? extends Object>> subclassMap = new ConcurrentHashMap<String, Class<? extends Object>>();
+
     // TODO: Make sure these are ok non-concurrent? Should never be writing to
     // these after startup!
     protected List<PersistedField> fields = new ArrayList<PersistedField>();
@@ -201,12 +247,21 @@ public class PersistentClass implements PersistedClass {
             idField = field;
         }
 
+        if (fieldInfo.getEncoding() == FieldEncoding.BINARY && !(field instanceof PersistedBinaryList)) {
+            throw new InvalidPersistedClassException(this, "Only List fields may be binary");
+        }
+
         if (field instanceof PersistedList) {
             PersistedList list = (PersistedList) field;
             if (list.getListDataType() == DataType.LIST) {
                 throw new InvalidPersistedClassException(this, "Lists of lists not supported");
             }
-            externalFields.add(list);
+            // Binary lists are stored in the class' own table
+            if (list instanceof PersistedBinaryList) {
+                internalFields.add(list);
+            } else {
+                externalFields.add(list);
+            }
             if (list.isObject()) {
                 referenceFields.add(list);
             }
@@ -230,6 +285,17 @@ public class PersistentClass implements PersistedClass {
             internalFields.add(field);
         }
 
+        if (fieldInfo.isLazy() && (!(field instanceof PersistedList) || field instanceof PersistedBinaryList)) {
+            throw new InvalidPersistedClassException(this, "Only non-binary List fields may be lazy");
+        }
+
+        if (fieldInfo.isIndexed()) {
+            if (field instanceof PersistedList || fieldInfo.isContained()) {
+                throw new InvalidPersistedClassException(this, "Lists and contained objects may not be indexed");
+            }
+            indexMap.put(field.getName(), new FieldIndex(field));
+        }
+
         field.setContainer(container);
 
         fields.add(field);
@@ -270,106 +336,1120 @@ public class PersistentClass implements PersistedClass {
         return entityInfo.isContained();
     }
 
-    public boolean hasContainer() {
-        return container != null;
+    public boolean hasContainer() {
+        return container != null;
+    }
+
+    /**
+     * Check whether subclasses of this class are stored with it.
+     * 
+     * Contained copies of a class never store subclasses- their data is part
+     * of their container's row.
+     * 
+     * @return true if each object's class name is stored with its data
+     */
+    public boolean isSubclassed() {
+        return entityInfo.isSubclassed() && container == null;
+    }
+
+    /**
+     * Register a subclass to be stored with this class.
+     * 
+     * @param subClass The subclass
+     * @throws InvalidPersistedClassException If this class doesn't allow
+     *             subclasses
+     */
+    public void addSubclass(Class<? extends Object> subClass) throws InvalidPersistedClassException {
+        if (!isSubclassed()) {
+            throw new InvalidPersistedClassException(subClass, "Class does not have the @PersistClass annotation, and " + persistClass.getName() + " does not allow subclasses");
+        }
+        subclassMap.put(subClass.getName(), subClass);
+    }
+
+    public void put(Object o) {
+        checkLoadCache();
+
+        Object key = getObjectKey(o);
+        CachedObject co = key == null ? null : cacheMap.get(key);
+        if (co == null) {
+            co = addToCache(o);
+            if (co == null) {
+                return;
+            }
+            key = getObjectKey(o);
+        }
+
+        // The new instance replaces the cached one
+        co.setCached(cacheObjects);
+        setCachedObject(key, co, o);
+        dirty = true;
+    }
+
+    public void remove(Object o) {
+        Object key = getObjectKey(o);
+        if (key != null) {
+            removeFromCache(key);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Turn an id into the key used to cache objects.
+     * 
+     * All cached objects are keyed by their data id. Integral ids are always
+     * stored as a Long, so that Integer, int and Long ids all find the same
+     * object. If this class uses another object as its id, that object may be
+     * passed in, and will be converted to its data id.
+     * 
+     * @param id The id to convert
+     * 
+     * @return The cache key, or null if id is null
+     */
+    public Object getCacheKey(Object id) {
+        if (id == null) {
+            return null;
+        }
+        if (isObjectId()) {
+            PersistentClass referenceType = idField.getReferenceType();
+            if (referenceType.getType().isInstance(id)) {
+                id = referenceType.getIdData(id);
+            }
+        }
+        return normalizeKey(id);
+    }
+
+    /**
+     * Get the cache key for an instance of this class.
+     * 
+     * @param o The object
+     * 
+     * @return The cache key, or null if the object has no id
+     */
+    protected Object getObjectKey(Object o) {
+        return normalizeKey(getIdData(o));
+    }
+
+    /**
+     * Convert a field value into the value stored for it.
+     * 
+     * Object references are stored as the referenced object's data id. Other
+     * values are returned as-is.
+     * 
+     * @param field The field the value belongs to
+     * @param value The value, or for references, the referenced object or its
+     *            id
+     * 
+     * @return The data value
+     */
+    protected static Object getFieldData(PersistedField field, Object value) {
+        PersistentClass referenceType = field.getReferenceType();
+        if (referenceType != null && value != null && referenceType.getType().isInstance(value)) {
+            value = referenceType.getIdData(value);
+        }
+        return value;
+    }
+
+    protected static Object normalizeKey(Object id) {
+        if (id instanceof Integer || id instanceof Short || id instanceof Byte) {
+            return Long.valueOf(((Number) id).longValue());
+        }
+        return id;
+    }
+
+    protected boolean isObjectId() {
+        return idField != null && idField.getReferenceType() != null;
+    }
+
+    public Object get(Object id, Object defaultValue) {
+        checkLoadCache();
+        Object result = get(id);
+        if (result != null) {
+            return result;
+        }
+
+        if (defaultValue == null) {
+            return null;
+        }
+
+        CachedObject cached = addToCache(defaultValue);
+        return cached.getObject();
+    }
+
+    public Object get(Object id) {
+        checkLoadCache();
+        if (idField == null || id == null) {
+            return null;
+        }
+
+        CachedObject cached = null;
+        if (isObjectId()) {
+            cached = objectIdMap.get(id);
+        }
+        if (cached == null) {
+            Object key = getCacheKey(id);
+            if (key != null) {
+                cached = cacheMap.get(key);
+            }
+        }
+
+        return cached == null ? null : cached.getObject();
+    }
+
+    /**
+     * Find the cached objects with a specific field value.
+     * 
+     * If the field is indexed, this is a single lookup. Otherwise, every
+     * cached object is checked. Changes made to an object are seen here once
+     * it has been put.
+     * 
+     * @param fieldName The name of the field to check
+     * @param value The value to look for. For object references, this may be
+     *            the referenced object or its id.
+     * 
+     * @return The matching objects, possibly empty
+     */
+    public <T> List<T> getBy(String fieldName, Object value) {
+        return getBy(persistClass, fieldName, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getBy(Class<? extends Object> objectType, String fieldName, Object value) {
+        checkLoadCache();
+        List<T> objects = new ArrayList<T>();
+
+        FieldIndex index = getIndex(fieldName);
+        if (index == null) {
+            PersistedField field = getPersistedField(fieldName);
+            if (field == null) {
+                log.warning("Persistence: " + schemaName + "." + name + " has no field named " + fieldName);
+                return objects;
+            }
+            index = new FieldIndex(field);
+            Object indexValue = index.getIndexValue(value);
+            for (Map<Object, CachedObject> partition : getPartitions(objectType)) {
+                for (CachedObject cached : partition.values()) {
+                    if (indexValue.equals(index.getIndexValue(field.get(cached.getObject())))) {
+                        objects.add((T) cached.getObject());
+                    }
+                }
+            }
+            return objects;
+        }
+
+        for (CachedObject cached : index.get(value)) {
+            Object o = cached.getObject();
+            if (objectType.isInstance(o)) {
+                objects.add((T) o);
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Compute an aggregate over a field of this class.
+     * 
+     * @param objectType The type of object to include- this class, or a
+     *            subclass
+     * @param function The aggregate function to compute
+     * @param fieldName The field to aggregate, or null to count objects
+     * 
+     * @return The result, or null if there are no values. Counts are
+     *         Integers, sums are Longs or Doubles, and minimum and maximum
+     *         values are the field's own type.
+     */
+    public Object aggregate(Class<? extends Object> objectType, AggregateFunction function, String fieldName) {
+        Map<Object, Object> results = aggregate(objectType, function, fieldName, null);
+        Object result = results.get(null);
+        if (result == null && function == AggregateFunction.COUNT) {
+            result = 0;
+        }
+        return result;
+    }
+
+    /**
+     * Compute an aggregate over a field of this class, grouped by the values
+     * of another field.
+     * 
+     * If this class hasn't been loaded yet, and the store supports it, the
+     * aggregate is computed by the store without loading any objects.
+     * Otherwise, it is computed from the cache.
+     * 
+     * @param objectType The type of object to include- this class, or a
+     *            subclass
+     * @param function The aggregate function to compute
+     * @param fieldName The field to aggregate, or null to count objects
+     * @param groupByFieldName The field to group by, or null for a single
+     *            result, keyed by null
+     * 
+     * @return A map of group values to results, possibly empty. Object
+     *         references are grouped by their id.
+     */
+    public Map<Object, Object> aggregate(Class<? extends Object> objectType, AggregateFunction function, String fieldName, String groupByFieldName) {
+        Map<Object, Object> results = new LinkedHashMap<Object, Object>();
+        PersistedField field = null;
+        PersistedField groupField = null;
+        if (fieldName != null) {
+            field = getQueryField(fieldName);
+            if (field == null) {
+                return results;
+            }
+        }
+        if (groupByFieldName != null) {
+            groupField = getQueryField(groupByFieldName);
+            if (groupField == null) {
+                return results;
+            }
+        }
+
+        if (loadState != LoadState.LOADED && objectType == persistClass && aggregateStore(results, function, field, groupField)) {
+            return results;
+        }
+
+        return aggregateCache(objectType, function, field, groupField);
+    }
+
+    protected Map<Object, Object> aggregateCache(Class<? extends Object> objectType, AggregateFunction function, PersistedField field, PersistedField groupField) {
+        checkLoadCache();
+        Map<Object, Object> results = new LinkedHashMap<Object, Object>();
+        for (Map<Object, CachedObject> partition : getPartitions(objectType)) {
+            for (CachedObject cached : partition.values()) {
+                Object o = cached.getObject();
+                Object group = groupField == null ? null : getFieldData(groupField, groupField.get(o));
+                Object value = field == null ? o : getFieldData(field, field.get(o));
+                Object result = results.get(group);
+                if (!results.containsKey(group) && function == AggregateFunction.COUNT) {
+                    result = 0;
+                }
+                result = accumulate(function, result, value);
+                if (result != null) {
+                    results.put(group, result);
+                }
+            }
+        }
+        return results;
+    }
+
+    protected boolean aggregateStore(Map<Object, Object> results, AggregateFunction function, PersistedField field, PersistedField groupField) {
+        DataStore store = getDefaultStore();
+        if (store == null || !store.connect() || !store.tableExists(getTableName())) {
+            return false;
+        }
+
+        DataTable resultTable = getClassTable();
+        String columnName = field == null ? null : field.getDataName();
+        String groupColumnName = groupField == null ? null : groupField.getDataName();
+        if (!store.aggregate(resultTable, function, columnName, groupColumnName)) {
+            return false;
+        }
+
+        for (DataRow row : resultTable.getRows()) {
+            List<DataField> rowFields = row.getFields();
+            Object group = null;
+            if (groupField != null) {
+                group = toFieldData(groupField, rowFields.get(0).getValue());
+            }
+            Object value = rowFields.get(rowFields.size() - 1).getValue();
+            if (value == null) {
+                continue;
+            }
+            switch (function) {
+            case COUNT:
+                value = ((Number) value).intValue();
+                break;
+            case SUM:
+                value = normalizeSum((Number) value);
+                break;
+            default:
+                value = toFieldData(field, value);
+            }
+            results.put(group, value);
+        }
+        return true;
+    }
+
+    /**
+     * Add a value to an aggregate result.
+     * 
+     * Null values are ignored, except when counting objects.
+     * 
+     * @param function The aggregate function
+     * @param result The current result, or null if there is none yet
+     * @param value The value to add
+     * 
+     * @return The new result
+     */
+    protected static Object accumulate(AggregateFunction function, Object result, Object value) {
+        if (value == null) {
+            return result;
+        }
+        switch (function) {
+        case COUNT:
+            return (Integer) result + 1;
+        case MIN:
+            return result == null || compareValues(value, result) < 0 ? value : result;
+        case MAX:
+            return result == null || compareValues(value, result) > 0 ? value : result;
+        case SUM:
+            if (!(value instanceof Number)) {
+                return result;
+            }
+            Number sum = (Number) result;
+            Number number = normalizeSum((Number) value);
+            if (sum == null) {
+                return number;
+            }
+            if (sum instanceof Long && number instanceof Long) {
+                return sum.longValue() + number.longValue();
+            }
+            return sum.doubleValue() + number.doubleValue();
+        }
+        return result;
+    }
+
+    protected static Number normalizeSum(Number value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return value.longValue();
+        }
+        return value.doubleValue();
+    }
+
+    /**
+     * Convert a value read from the store to the type used in memory.
+     * 
+     * @param field The field the value was read from
+     * @param value The stored value
+     * 
+     * @return The value, converted to the field's type, or the referenced
+     *         class' id type for object references
+     */
+    protected static Object toFieldData(PersistedField field, Object value) {
+        PersistedField dataField = field;
+        PersistentClass referenceType = field.getReferenceType();
+        if (referenceType != null) {
+            dataField = referenceType.getConcreteIdField();
+        }
+        if (dataField == null || value == null) {
+            return value;
+        }
+        Object converted = DataType.convertValue(value, dataField.getType());
+        return converted == null ? value : converted;
+    }
+
+    /**
+     * Read only some fields of this class' instances, as flat records.
+     * 
+     * No objects are created, and no list data is read. If this class hasn't
+     * been loaded yet, and the store supports it, only the requested columns
+     * are read from the store. Otherwise, the values are read from the cache.
+     * 
+     * Object references are returned as the referenced object's id.
+     * 
+     * @param objectType The type of object to read- this class, or a subclass
+     * @param fieldNames The fields to read. Lists can't be projected.
+     * @param limit The maximum number of records to return, or 0 for no limit
+     * 
+     * @return One array of values per object, in the same order as
+     *         fieldNames
+     */
+    public List<Object[]> project(Class<? extends Object> objectType, List<String> fieldNames, int limit) {
+        List<Object[]> records = new ArrayList<Object[]>();
+        List<PersistedField> projectFields = new ArrayList<PersistedField>();
+        for (String fieldName : fieldNames) {
+            PersistedField field = getQueryField(fieldName);
+            if (field == null) {
+                return records;
+            }
+            projectFields.add(field);
+        }
+
+        if (loadState != LoadState.LOADED && objectType == persistClass && projectStore(records, projectFields, limit)) {
+            return records;
+        }
+
+        checkLoadCache();
+        for (Map<Object, CachedObject> partition : getPartitions(objectType)) {
+            for (CachedObject cached : partition.values()) {
+                if (limit > 0 && records.size() >= limit) {
+                    return records;
+                }
+                Object o = cached.getObject();
+                Object[] record = new Object[projectFields.size()];
+                for (int i = 0; i < record.length; i++) {
+                    PersistedField field = projectFields.get(i);
+                    record[i] = getFieldData(field, field.get(o));
+                }
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    protected boolean projectStore(List<Object[]> records, List<PersistedField> projectFields, int limit) {
+        DataStore store = getDefaultStore();
+        if (store == null || !store.connect() || !store.tableExists(getTableName())) {
+            return false;
+        }
+
+        DataQuery dataQuery = new DataQuery();
+        for (PersistedField field : projectFields) {
+            dataQuery.addColumn(field.getDataName());
+        }
+        dataQuery.setLimit(limit);
+
+        DataTable resultTable = getClassTable();
+        if (!store.query(resultTable, dataQuery)) {
+            return false;
+        }
+
+        for (DataRow row : resultTable.getRows()) {
+            List<DataField> rowFields = row.getFields();
+            Object[] record = new Object[projectFields.size()];
+            for (int i = 0; i < record.length && i < rowFields.size(); i++) {
+                record[i] = toFieldData(projectFields.get(i), rowFields.get(i).getValue());
+            }
+            records.add(record);
+        }
+        return true;
+    }
+
+    /**
+     * Run a query against this class.
+     * 
+     * Once the cache is loaded, entities are queried in memory, using an
+     * index to find the candidate objects if one of the conditions is on an
+     * indexed field. Before that, the conditions, ordering and limit are
+     * passed to the data store if it supports it, so only the matching rows
+     * are read and the cache isn't loaded.
+     * 
+     * Objects read from the store are not the instances the cache will hold
+     * once it is loaded- put them back to save any changes made to them.
+     * 
+     * @param query The query to run
+     * 
+     * @return The matching objects, possibly empty
+     */
+    public <T> List<T> query(PersistenceQuery<T> query) {
+        List<PersistedField> conditionFields = new ArrayList<PersistedField>();
+        for (String fieldName : query.getFieldNames()) {
+            PersistedField field = getQueryField(fieldName);
+            if (field == null) {
+                return new ArrayList<T>();
+            }
+            conditionFields.add(field);
+        }
+
+        PersistedField orderField = null;
+        if (query.getOrderBy() != null) {
+            orderField = getQueryField(query.getOrderBy());
+            if (orderField == null) {
+                return new ArrayList<T>();
+            }
+        }
+
+        List<T> results = new ArrayList<T>();
+        if (loadState != LoadState.LOADED && query.getObjectType() == persistClass && queryStore(results, query, conditionFields, orderField)) {
+            return results;
+        }
+        return queryCache(query, conditionFields, orderField);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T> List<T> queryCache(PersistenceQuery<T> query, List<PersistedField> conditionFields, final PersistedField orderField) {
+        checkLoadCache();
+        List<Object> values = query.getValues();
+
+        // Use the first indexed condition to find candidates
+        int indexedCondition = -1;
+        Collection<CachedObject> candidates = null;
+        for (int i = 0; i < conditionFields.size(); i++) {
+            FieldIndex index = getIndex(conditionFields.get(i).getName());
+            if (index != null) {
+                indexedCondition = i;
+                candidates = index.get(values.get(i));
+                break;
+            }
+        }
+        if (candidates == null) {
+            candidates = new ArrayList<CachedObject>();
+            for (Map<Object, CachedObject> partition : getPartitions(query.getObjectType())) {
+                candidates.addAll(partition.values());
+            }
+        }
+
+        // Without ordering, we can stop as soon as we have enough
+        int limit = query.getLimit();
+        int offset = query.getOffset();
+        int maxMatches = orderField == null && limit > 0 ? offset + limit : Integer.MAX_VALUE;
+
+        List<Object> matches = new ArrayList<Object>();
+        for (CachedObject cached : candidates) {
+            Object o = cached.getObject();
+            if (!query.getObjectType().isInstance(o) || !matchesConditions(o, conditionFields, values, indexedCondition)) {
+                continue;
+            }
+            matches.add(o);
+            if (matches.size() >= maxMatches) {
+                break;
+            }
+        }
+
+        if (orderField != null) {
+            final boolean descending = query.isDescending();
+            Collections.sort(matches, new Comparator<Object>() {
+                public int compare(Object o1, Object o2) {
+                    int result = compareValues(getFieldData(orderField, orderField.get(o1)), getFieldData(orderField, orderField.get(o2)));
+                    return descending ? -result : result;
+                }
+            });
+        }
+
+        List<T> results = new ArrayList<T>();
+        int end = limit > 0 ? Math.min(matches.size(), offset + limit) : matches.size();
+        for (int i = offset; i < end; i++) {
+            results.add((T) matches.get(i));
+        }
+        return results;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T> boolean queryStore(List<T> results, PersistenceQuery<T> query, List<PersistedField> conditionFields, PersistedField orderField) {
+        DataStore store = getDefaultStore();
+        if (store == null || !store.connect() || !store.tableExists(getTableName())) {
+            return false;
+        }
+
+        DataQuery dataQuery = new DataQuery();
+        List<Object> values = query.getValues();
+        for (int i = 0; i < conditionFields.size(); i++) {
+            PersistedField field = conditionFields.get(i);
+            dataQuery.addCondition(new DataField(field.getDataName(), field.getDataType(), getFieldData(field, values.get(i))));
+        }
+        if (orderField != null) {
+            dataQuery.setOrderBy(orderField.getDataName(), query.isDescending());
+        }
+        dataQuery.setLimit(query.getLimit());
+        dataQuery.setOffset(query.getOffset());
+
+        DataTable classTable = getClassTable();
+        if (!store.query(classTable, dataQuery)) {
+            return false;
+        }
+
+        try {
+            PersistedObject.beginDefer();
+            for (DataRow row : classTable.getRows()) {
+                Object newInstance = createInstance(row);
+                if (newInstance != null && query.getObjectType().isInstance(newInstance)) {
+                    results.add((T) newInstance);
+                }
+            }
+            PersistedObject.endDefer();
+        } catch (InvalidDataException e) {
+            log.warning("Persistence: Error binding query results for " + schemaName + "." + name + ": " + e.getMessage());
+        }
+
+        // Only the matching objects' list rows are wanted, so each list loads
+        // its owner's rows when first used, rather than reading whole tables
+        for (PersistedList list : externalFields) {
+            for (T instance : results) {
+                list.bindLazy(instance);
+            }
+        }
+
+        return true;
+    }
+
+    protected boolean matchesConditions(Object o, List<PersistedField> conditionFields, List<Object> values, int skipCondition) {
+        for (int i = 0; i < conditionFields.size(); i++) {
+            if (i == skipCondition) {
+                continue;
+            }
+            PersistedField field = conditionFields.get(i);
+            Object expected = normalizeKey(getFieldData(field, values.get(i)));
+            Object actual = normalizeKey(getFieldData(field, field.get(o)));
+            if (expected == null ? actual != null : !expected.equals(actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static int compareValues(Object value1, Object value2) {
+        if (value1 == null || value2 == null) {
+            return value1 == null ? (value2 == null ? 0 : -1) : 1;
+        }
+        if (value1 instanceof Comparable && value1.getClass() == value2.getClass()) {
+            return ((Comparable<Object>) value1).compareTo(value2);
+        }
+        return value1.toString().compareTo(value2.toString());
+    }
+
+    /**
+     * Find a field that may be used in a query.
+     * 
+     * @param fieldName The name of the field
+     * 
+     * @return The field, or null if it doesn't exist or can't be queried
+     */
+    protected PersistedField getQueryField(String fieldName) {
+        PersistedField field = getPersistedField(fieldName);
+        if (field == null || field instanceof PersistedList || field.isContained()) {
+            log.warning("Persistence: " + schemaName + "." + name + " has no queryable field named " + fieldName);
+            return null;
+        }
+        return field;
+    }
+
+    /**
+     * Get the secondary index for a field, building it if needed.
+     * 
+     * An index can only be built once the cache has finished loading, since
+     * references may not be bound before then. Until it's built, callers
+     * should scan the cache instead.
+     * 
+     * @param fieldName The name of the field
+     * 
+     * @return The index, or null if the field is not indexed, or the index
+     *         can't be built yet
+     */
+    protected FieldIndex getIndex(String fieldName) {
+        FieldIndex index = indexMap.get(fieldName);
+        if (index == null || index.isBuilt()) {
+            return index;
+        }
+        if (loadState != LoadState.LOADED) {
+            return null;
+        }
+        index.build(cacheMap);
+        return index;
+    }
+
+    protected PersistedField getPersistedField(String fieldName) {
+        for (PersistedField field : fields) {
+            if (field.getName().equals(fieldName)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    public <T> void getAll(List<T> objects) {
+        getAll(objects, persistClass);
+    }
+
+    /**
+     * Add all cached instances of a specific type to a list.
+     * 
+     * Only the cache partitions for matching classes are looked at, so asking
+     * for a subclass doesn't involve checking every cached object.
+     * 
+     * @param objects The list to add to
+     * @param objectType The type of object to get- this class, or a subclass
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void getAll(List<T> objects, Class<? extends Object> objectType) {
+        checkLoadCache();
+        for (Map<Object, CachedObject> partition : getPartitions(objectType)) {
+            for (CachedObject cachedObject : partition.values()) {
+                objects.add((T) cachedObject.getObject());
+            }
+        }
+    }
+
+    /**
+     * Get the number of instances of this class.
+     * 
+     * If this class hasn't been loaded yet, the store is asked for the count
+     * instead of loading every object.
+     * 
+     * @return The number of objects
+     */
+    public int count() {
+        return count(persistClass);
+    }
+
+    public int count(Class<? extends Object> objectType) {
+        // Don't load everything just to count it
+        if (loadState != LoadState.LOADED && objectType == persistClass) {
+            Map<Object, Object> results = new LinkedHashMap<Object, Object>();
+            if (aggregateStore(results, AggregateFunction.COUNT, null, null)) {
+                Object count = results.get(null);
+                return count == null ? 0 : (Integer) count;
+            }
+        }
+
+        checkLoadCache();
+        int count = 0;
+        for (Map<Object, CachedObject> partition : getPartitions(objectType)) {
+            count += partition.size();
+        }
+        return count;
+    }
+
+    /**
+     * Visit each cached instance of this class, without copying them to a
+     * list first.
+     * 
+     * Objects added or removed while visiting may or may not be seen.
+     * 
+     * @param visitor The callback to call for each object
+     */
+    public <T> void forEach(ObjectVisitor<T> visitor) {
+        forEach(persistClass, visitor);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> void forEach(Class<? extends Object> objectType, ObjectVisitor<T> visitor) {
+        checkLoadCache();
+        for (Map<Object, CachedObject> partition : getPartitions(objectType)) {
+            for (CachedObject cachedObject : partition.values()) {
+                if (!visitor.visit((T) cachedObject.getObject())) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterate over the cached instances of this class directly.
+     * 
+     * The iteration is weakly consistent- it will never throw a
+     * ConcurrentModificationException, but objects added or removed while
+     * iterating may or may not be seen.
+     * 
+     * @return An Iterable over the cache
+     */
+    public <T> Iterable<T> iterate() {
+        return iterate(persistClass);
+    }
+
+    public <T> Iterable<T> iterate(Class<? extends Object> objectType) {
+        checkLoadCache();
+        final List<Map<Object, CachedObject>> partitions = getPartitions(objectType);
+        return new Iterable<T>() {
+            public Iterator<T> iterator() {
+                return new CacheIterator<T>(partitions);
+            }
+        };
+    }
+
+    protected class CacheIterator<T> implements Iterator<T> {
+        protected final Iterator<Map<Object, CachedObject>> partitionIterator;
+        protected Iterator<CachedObject> cacheIterator = null;
+
+        public CacheIterator(List<Map<Object, CachedObject>> partitions) {
+            partitionIterator = partitions.iterator();
+        }
+
+        public boolean hasNext() {
+            while (cacheIterator == null || !cacheIterator.hasNext()) {
+                if (!partitionIterator.hasNext()) {
+                    return false;
+                }
+                cacheIterator = partitionIterator.next().values().iterator();
+            }
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return (T) cacheIterator.next().getObject();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Get the cache partitions holding instances of a type.
+     * 
+     * Objects of subclassed classes are partitioned by their concrete class,
+     * so this will return one partition for each cached subclass of
+     * objectType. Other classes only have the one cache.
+     * 
+     * @param objectType The type to look for
+     * 
+     * @return The matching partitions, possibly empty
+     */
+    protected List<Map<Object, CachedObject>> getPartitions(Class<? extends Object> objectType) {
+        if (!isSubclassed()) {
+            if (objectType.isAssignableFrom(persistClass)) {
+                return cachePartitions;
+            }
+            return Collections.emptyList();
+        }
+
+        List<Map<Object, CachedObject>> partitions = new ArrayList<Map<Object, CachedObject>>();
+        for (Map.Entry<Class<? extends Object>, Map<Object, CachedObject>> entry : partitionMap.entrySet()) {
+            if (objectType.isAssignableFrom(entry.getKey())) {
+                partitions.add(entry.getValue());
+            }
+        }
+        return partitions;
+    }
+
+    protected void addToPartition(Object id, CachedObject cached) {
+        if (!isSubclassed()) {
+            return;
+        }
+
+        Class<? extends Object> objectClass = cached.getObject().getClass();
+        Map<Object, CachedObject> partition = partitionMap.get(objectClass);
+        if (partition == null) {
+            partition = createCacheMap();
+            Map<Object, CachedObject> existing = partitionMap.putIfAbsent(objectClass, partition);
+            if (existing != null) {
+                partition = existing;
+            }
+        }
+        partition.put(id, cached);
+    }
+
+    /**
+     * Create a map for cached objects, suited to this class' id type.
+     * 
+     * Integer and long ids get a map that stores keys as primitives.
+     * 
+     * @return A new, empty, thread-safe map
+     */
+    protected Map<Object, CachedObject> createCacheMap() {
+        if (idField != null) {
+            PersistedField concreteField = idField.getConcreteField();
+            DataType idType = concreteField == null ? null : concreteField.getDataType();
+            if (idType == DataType.INTEGER || idType == DataType.LONG || idType == DataType.BYTE) {
+                return new ConcurrentLongMap<CachedObject>();
+            }
+        }
+        return new ConcurrentHashMap<Object, CachedObject>();
+    }
+
+    protected void removeFromPartition(Object id, CachedObject cached) {
+        if (!isSubclassed()) {
+            return;
+        }
+
+        Map<Object, CachedObject> partition = partitionMap.get(cached.getObject().getClass());
+        if (partition != null) {
+            partition.remove(id);
+        }
+    }
+
+    /**
+     * Replace the object held by a cache entry, moving it to a different
+     * partition if its class has changed.
+     * 
+     * @param id The cache id of the entry
+     * @param cached The cache entry
+     * @param o The new object
+     */
+    protected void setCachedObject(Object id, CachedObject cached, Object o) {
+        Object current = cached.getObject();
+        if (current != null && id != null && current.getClass() != o.getClass() && isSubclassed()) {
+            removeFromPartition(id, cached);
+            cached.setObject(o);
+            addToPartition(id, cached);
+        } else {
+            cached.setObject(o);
+        }
+
+        if (id != null) {
+            for (FieldIndex index : indexMap.values()) {
+                index.update(id, cached);
+            }
+        }
     }
 
-    public void put(Object o) {
+    /**
+     * Replace the cached instances of this class with a new set of objects.
+     * 
+     * Objects already in the cache are replaced, new objects are added, and
+     * any cached objects not in the list are removed. Autogenerated ids are
+     * reserved for all of the new objects at once.
+     * 
+     * Nothing is written until the next save.
+     * 
+     * @param objects The new set of objects
+     */
+    public void putAll(List<? extends Object> objects) {
         checkLoadCache();
+        assignIds(objects);
+
+        Set<Object> putKeys = new HashSet<Object>();
+        for (Object o : objects) {
+            Object key = getObjectKey(o);
+            CachedObject co = key == null ? null : cacheMap.get(key);
+            if (co == null) {
+                co = addToCache(o);
+                if (co == null) {
+                    continue;
+                }
+                key = getObjectKey(o);
+            }
 
-        Object id = getId(o);
-        CachedObject co = cacheMap.get(id);
-        if (co == null) {
-            co = addToCache(o);
+            // The new instance replaces the cached one
+            co.setCached(cacheObjects);
+            setCachedObject(key, co, o);
+            putKeys.add(key);
         }
 
-        // TODO: merge
-        co.setCached(cacheObjects);
-        co.setObject(o);
-        dirty = true;
-    }
+        List<Object> removedKeys = new ArrayList<Object>();
+        for (Object key : cacheMap.keySet()) {
+            if (!putKeys.contains(key)) {
+                removedKeys.add(key);
+            }
+        }
+        for (Object key : removedKeys) {
+            removeFromCache(key);
+        }
 
-    public void remove(Object o) {
-        Object id = getId(o);
-        removeFromCache(id);
         dirty = true;
     }
 
-    protected Object getById(PersistedField idField, Map<Object, CachedObject> fromCache, Object id) {
-        if (idField == null || id == null) {
-            return null;
+    /**
+     * Write a large number of objects straight to the data store, without
+     * keeping them in memory.
+     * 
+     * Objects are written in batches, each batch in its own transaction.
+     * Autogenerated ids are reserved a batch at a time.
+     * 
+     * If this class' cache has already been loaded, each batch is flushed
+     * through the cache instead: imported objects replace any cached objects
+     * with the same ids, and new ones are added, so they are kept in memory
+     * after all. Other cached objects, and any changes pending on them, are
+     * left alone.
+     * 
+     * @param objects The objects to write
+     * 
+     * @return The number of objects written, or -1 on failure
+     */
+    public int importAll(Iterable<? extends Object> objects) {
+        DataStore store = getDefaultStore();
+        if (store == null || !store.connect()) {
+            return -1;
         }
-        if (id.getClass().isAssignableFrom(idField.getType())) {
-            CachedObject cached = fromCache.get(id);
-            if (cached != null) {
-                return cached.getObject();
-            }
-        } else {
-            // Try to do some fancy casting.
-            // This is mainly here to avoid the Integer/int problem.
 
-            DataField requestId = new DataField(id);
-            id = requestId.getValue(idField.getType());
+        boolean loaded = loadState == LoadState.LOADED;
+        if (loadState == LoadState.UNLOADED) {
+            validateTables(store);
+        }
 
-            CachedObject cached = fromCache.get(id);
-            if (cached != null) {
-                return cached.getObject();
+        int importCount = 0;
+        List<Object> batch = new ArrayList<Object>();
+        for (Object o : objects) {
+            batch.add(o);
+            if (batch.size() >= importBatchSize) {
+                if (!importBatch(batch, store, loaded)) {
+                    importCount = -1;
+                    break;
+                }
+                importCount += batch.size();
+                batch.clear();
+            }
+        }
+        if (importCount >= 0 && batch.size() > 0) {
+            if (importBatch(batch, store, loaded)) {
+                importCount += batch.size();
+            } else {
+                importCount = -1;
             }
         }
 
-        return null;
+        return importCount;
     }
 
-    public Object get(Object id, Object defaultValue) {
-        checkLoadCache();
-        Object result = get(id);
-        if (result != null) {
-            return result;
+    protected boolean importBatch(List<Object> batch, DataStore store, boolean loaded) {
+        if (loaded) {
+            // Keep the cache, and any instances callers hold, up to date
+            assignIds(batch);
+            return flush(batch, store);
         }
+        return importBatch(batch, store);
+    }
 
-        if (defaultValue == null) {
-            return null;
+    protected boolean importBatch(List<Object> batch, DataStore store) {
+        assignIds(batch);
+
+        DataTable classTable = getClassTable();
+        List<Object> ids = new ArrayList<Object>();
+        for (Object o : batch) {
+            DataRow row = new DataRow(classTable);
+            populate(row, o);
+            classTable.addRow(row);
+            ids.add(getIdData(o));
         }
 
-        CachedObject cached = addToCache(defaultValue);
-        return cached.getObject();
-    }
+        boolean transaction = store.beginTransaction();
+        boolean success = store.save(classTable);
 
-    public Object get(Object id) {
-        checkLoadCache();
-        PersistedField idField = getIdField();
-        if (idField == null) {
-            return null;
+        // Replace any list data that may already exist for these ids
+        success = clearListData(store, ids) && success;
+        for (PersistedList list : externalFields) {
+            DataTable listTable = getListTable(list);
+            for (Object o : batch) {
+                list.save(listTable, o);
+            }
+            if (listTable.getRows().size() > 0) {
+                success = store.save(listTable) && success;
+            }
         }
 
-        Object result = getById(idField, cacheMap, id);
-        if (result == null) {
-            idField = idField.getConcreteField();
-            result = getById(idField, concreteIdMap, id);
+        if (transaction) {
+            if (success) {
+                success = store.commit();
+            } else {
+                store.rollback();
+            }
         }
 
-        return result;
+        return success;
     }
 
-    @SuppressWarnings("unchecked")
-    public <T> void getAll(List<T> objects) {
-        checkLoadCache();
-        for (CachedObject cachedObject : cacheMap.values()) {
-            Object object = cachedObject.getObject();
-            if (persistClass.isAssignableFrom(object.getClass())) {
-                objects.add((T) object);
+    /**
+     * Assign autogenerated ids to any objects that don't have one yet.
+     * 
+     * Ids are reserved as one contiguous range.
+     * 
+     * @param objects The objects that need ids
+     */
+    protected void assignIds(List<? extends Object> objects) {
+        if (idField == null || !idField.isAutogenerated()) {
+            return;
+        }
+
+        List<Object> unassigned = new ArrayList<Object>();
+        for (Object o : objects) {
+            Long id = (Long) DataType.convertValue(getId(o), Long.class);
+            if (id == null || id <= 0) {
+                unassigned.add(o);
             }
         }
-    }
+        if (unassigned.size() == 0) {
+            return;
+        }
 
-    public void putAll(List<? extends Object> objects) {
-        checkLoadCache();
-        // TODO: merge...
+        long nextId = idAllocator.allocate(unassigned.size());
+        for (Object o : unassigned) {
+            try {
+                idField.set(o, DataType.convertValue(nextId, idField.getType()));
+            } catch (InvalidDataException e) {
+                log.warning("Persistence: Can't assign id " + nextId + " to " + schemaName + "." + name + ": " + e.getMessage());
+            }
+            nextId++;
+        }
     }
 
     public void clear() {
         cacheMap.clear();
-        concreteIdMap.clear();
+        objectIdMap.clear();
+        partitionMap.clear();
+        for (FieldIndex index : indexMap.values()) {
+            index.clear();
+        }
         loadState = LoadState.UNLOADED;
     }
 
@@ -398,7 +1478,7 @@ public class PersistentClass implements PersistedClass {
             store.drop(listTable.getName());
         }
 
-        maxId = 1;
+        idAllocator.reset();
     }
 
     public boolean isDirty() {
@@ -453,12 +1533,24 @@ public class PersistentClass implements PersistedClass {
             return;
         }
 
-        // Drop removed objects
+        // Delete removed objects, and their list data
         Collection<CachedObject> removedList = removedMap.values();
         if (removedList.size() > 0) {
+            List<Object> removedIds = new ArrayList<Object>();
+            for (CachedObject removed : removedList) {
+                removedIds.add(getIdData(removed.getObject()));
+            }
+
+            DataTable headerTable = getClassTable();
+            headerTable.createHeader();
+            populateHeader(headerTable);
+
             DataTable clearTable = getClassTable();
-            populate(clearTable, removedList);
-            store.clear(clearTable);
+            for (String idFieldName : headerTable.getIdFieldNames()) {
+                clearTable.addIdFieldName(idFieldName);
+            }
+            store.clearIds(clearTable, removedIds);
+            clearListData(store, removedIds);
 
             removedMap.clear();
         }
@@ -471,8 +1563,27 @@ public class PersistentClass implements PersistedClass {
             }
         }
 
-        save(dirtyObjects, store);
-        dirty = false;
+        if (save(dirtyObjects, store)) {
+            dirty = false;
+        }
+    }
+
+    /**
+     * Delete all list sub-table data for a set of objects.
+     * 
+     * @param store The store to delete from
+     * @param ids The ids (data values) of the objects to clear
+     * 
+     * @return true if success
+     */
+    protected boolean clearListData(DataStore store, List<Object> ids) {
+        boolean success = true;
+        for (PersistedList list : externalFields) {
+            DataTable listTable = getListTable(list);
+            listTable.addIdFieldName(getContainedIdName());
+            success = store.clearIds(listTable, ids) && success;
+        }
+        return success;
     }
 
     protected void populate(DataTable dataTable, Collection<CachedObject> instances) {
@@ -484,6 +1595,10 @@ public class PersistentClass implements PersistedClass {
     }
 
     public void populate(DataRow row, Object instance) {
+        if (isSubclassed()) {
+            String className = instance == null ? null : instance.getClass().getName();
+            row.add(new DataField(SUBCLASS_COLUMN, DataType.STRING, className));
+        }
         for (PersistedField field : internalFields) {
             try {
                 field.save(row, instance);
@@ -494,41 +1609,231 @@ public class PersistentClass implements PersistedClass {
         }
     }
 
-    public void save(List<CachedObject> instances) {
-        save(instances, getDefaultStore());
+    /**
+     * Write a specific set of objects, and their list data, to the default
+     * store right away.
+     * 
+     * This is done in a single transaction, if the store supports it. Objects
+     * that aren't in the cache yet will be added to it first, if the cache is
+     * loaded.
+     * 
+     * @param objects The objects to write
+     * 
+     * @return true if success
+     */
+    public boolean flush(Collection<? extends Object> objects) {
+        return flush(objects, getDefaultStore());
+    }
+
+    public boolean flush(Collection<? extends Object> objects, DataStore store) {
+        if (store == null || !store.connect()) {
+            return false;
+        }
+
+        // Don't load the whole table just to write a few objects- if the
+        // cache isn't loaded yet, write them straight through, the same as an
+        // import. They'll be read back in if the cache is loaded later.
+        if (loadState != LoadState.LOADED) {
+            if (loadState == LoadState.UNLOADED) {
+                validateTables(store);
+            }
+            return importBatch(new ArrayList<Object>(objects), store);
+        }
+
+        List<CachedObject> instances = new ArrayList<CachedObject>();
+        for (Object object : objects) {
+            Object key = getObjectKey(object);
+            CachedObject cached = key == null ? null : cacheMap.get(key);
+            if (cached == null) {
+                cached = addToCache(object);
+                if (cached == null) {
+                    continue;
+                }
+                cached.setCached(cacheObjects);
+                key = getObjectKey(object);
+            }
+            setCachedObject(key, cached, object);
+            instances.add(cached);
+        }
+
+        boolean transaction = store.beginTransaction();
+        boolean success = save(instances, store);
+        if (transaction) {
+            if (success) {
+                success = store.commit();
+            } else {
+                store.rollback();
+            }
+        }
+
+        if (!success) {
+            markUnsaved(objects);
+        }
+
+        return success;
+    }
+
+    /**
+     * Mark objects as needing to be saved, even if they look unchanged.
+     * 
+     * This is used when a write has been rolled back, so that anything that
+     * didn't make it is picked up by the next save.
+     * 
+     * @param objects The objects to mark
+     */
+    public void markUnsaved(Collection<? extends Object> objects) {
+        for (Object object : objects) {
+            Object key = getObjectKey(object);
+            CachedObject cached = key == null ? null : cacheMap.get(key);
+            if (cached != null) {
+                cached.setSavedData(null);
+                setCachedObject(key, cached, object);
+            }
+        }
+        dirty = true;
+    }
+
+    public boolean save(List<CachedObject> instances) {
+        return save(instances, getDefaultStore());
     }
 
-    public void save(List<CachedObject> instances, DataStore store) {
+    public boolean save(List<CachedObject> instances, DataStore store) {
         if (!store.connect()) {
-            return;
+            return false;
+        }
+
+        // Skip any objects whose data hasn't changed since the last write
+        List<CachedObject> changedInstances = new ArrayList<CachedObject>();
+        Object[] savedData = new Object[instances.size()];
+        for (CachedObject instance : instances) {
+            Object[] data = getSavedData(instance.getObject());
+            Object lastSaved = instance.getSavedData();
+            if (lastSaved instanceof Object[] && Arrays.deepEquals(data, (Object[]) lastSaved)) {
+                instance.setSaved();
+                continue;
+            }
+            savedData[changedInstances.size()] = data;
+            changedInstances.add(instance);
+        }
+
+        int skipped = instances.size() - changedInstances.size();
+        skippedCount += skipped;
+        if (skipped > 0) {
+            DataStore.logStoreAccess("Persistence: skipped %d unchanged objects in " + schemaName + "." + name, skipped);
+        }
+        if (changedInstances.size() == 0) {
+            return true;
         }
 
         // Save main class data
         DataTable classTable = getClassTable();
-        populate(classTable, instances);
-        store.save(classTable);
+        populate(classTable, changedInstances);
+        boolean success = store.save(classTable);
 
         // Save list data
+        Map<PersistedList, List<Object>> writtenLists = new HashMap<PersistedList, List<Object>>();
         for (PersistedList list : externalFields) {
             DataTable listTable = getListTable(list);
             List<Object> instanceIds = new ArrayList<Object>();
+            List<Object> written = new ArrayList<Object>();
 
-            for (CachedObject instance : instances) {
+            for (CachedObject instance : changedInstances) {
+                // Unchanged lazy lists are already up to date in the store
+                if (list.isUnmodified(instance.getObject())) {
+                    continue;
+                }
                 Object id = getIdData(instance.getObject());
                 instanceIds.add(id);
+
+                // Cleared before the rows are read, so a change made while
+                // saving marks the list modified again
+                list.setModified(instance.getObject(), false);
                 list.save(listTable, instance.getObject());
+                written.add(instance.getObject());
+            }
+            if (instanceIds.size() == 0) {
+                continue;
             }
+            writtenLists.put(list, written);
 
             // First, delete removed items
-            store.clearIds(listTable, instanceIds);
+            success = store.clearIds(listTable, instanceIds) && success;
+
+            // Save new list data. An empty table would be cleared entirely.
+            if (listTable.getRows().size() > 0) {
+                success = store.save(listTable) && success;
+            }
+        }
 
-            // Save new list data
-            store.save(listTable);
+        // Objects that failed to save stay dirty, so they'll be tried again
+        if (!success) {
+            for (Map.Entry<PersistedList, List<Object>> entry : writtenLists.entrySet()) {
+                for (Object o : entry.getValue()) {
+                    entry.getKey().setModified(o, true);
+                }
+            }
+            return false;
+        }
+
+        for (int i = 0; i < changedInstances.size(); i++) {
+            changedInstances.get(i).setSaved(savedData[i]);
         }
+        savedCount += changedInstances.size();
+        return true;
+    }
 
-        for (CachedObject cached : instances) {
-            cached.setSaved();
+    /**
+     * Copy the data an object would write to the store, including the
+     * contents of its lists.
+     * 
+     * This is compared against the data kept on the CachedObject from its
+     * last write, to skip writing objects that haven't actually changed. An
+     * object's first save is always written, since nothing is kept when the
+     * cache is loaded.
+     * 
+     * @param instance The object to copy
+     * 
+     * @return The object's row values, followed by the row values of each of
+     *         its lists- or null for lazy lists that haven't changed
+     */
+    public Object[] getSavedData(Object instance) {
+        Object[] data = new Object[externalFields.size() + 1];
+        DataTable classTable = getClassTable();
+        DataRow row = new DataRow(classTable);
+        populate(row, instance);
+        data[0] = row.copyValues();
+
+        for (int i = 0; i < externalFields.size(); i++) {
+            PersistedList list = externalFields.get(i);
+            // Don't force unchanged lazy lists to load
+            if (list.isUnmodified(instance)) {
+                continue;
+            }
+            DataTable listTable = getListTable(list);
+            list.save(listTable, instance);
+            data[i + 1] = listTable.copyValues();
         }
+
+        return data;
+    }
+
+    /**
+     * Get the number of objects written to the store since startup.
+     * 
+     * @return The number of object writes
+     */
+    public int getSavedCount() {
+        return savedCount;
+    }
+
+    /**
+     * Get the number of dirty objects that were not written to the store
+     * because their data had not changed.
+     * 
+     * @return The number of skipped writes
+     */
+    public int getSkippedCount() {
+        return skippedCount;
     }
 
     /*
@@ -557,6 +1862,14 @@ public class PersistentClass implements PersistedClass {
     protected void checkLoadCache(DataStore store) throws InvalidDataException {
         if (loadState == LoadState.UNLOADED && cacheObjects) {
             loadState = LoadState.LOADING;
+
+            // References are bound by now, so the id type is known
+            if (cacheMap.isEmpty()) {
+                cacheMap = createCacheMap();
+                removedMap = createCacheMap();
+                cachePartitions = Collections.singletonList(cacheMap);
+            }
+
             try {
                 if (store.connect()) {
                     validateTables(store);
@@ -579,7 +1892,13 @@ public class PersistentClass implements PersistedClass {
         classTable.createHeader();
         populateHeader(classTable);
 
+        boolean created = !store.tableExists(classTable.getName());
         migrateEntity(store, classTable);
+        applyMigrationSteps(store, classTable, created);
+
+        for (FieldIndex index : indexMap.values()) {
+            store.createIndex(classTable.getName(), index.getField().getDataName());
+        }
 
         // Validate any list sub-tables
         for (PersistedList list : externalFields) {
@@ -607,6 +1926,9 @@ public class PersistentClass implements PersistedClass {
     }
 
     public void populateHeader(DataTable table) {
+        if (isSubclassed()) {
+            table.getHeader().add(new DataField(SUBCLASS_COLUMN, DataType.STRING));
+        }
         for (PersistedField field : internalFields) {
             field.populateHeader(table);
         }
@@ -634,15 +1956,7 @@ public class PersistentClass implements PersistedClass {
             Object newInstance = createInstance(row);
 
             if (newInstance != null) {
-                if (idField.isAutogenerated()) {
-                    int id = (Integer) idField.get(newInstance);
-                    if (id > maxId) {
-                        maxId = id;
-                    }
-                }
-
-                // cache by concrete (data) is from the store
-                // as well as the actual id
+                // cache by concrete (data) id from the store
                 // This covers the case of "object as id", when that
                 // Object may not be loaded yet
                 DataField idData = row.get(idField.getDataName());
@@ -670,6 +1984,13 @@ public class PersistentClass implements PersistedClass {
                 instances.add(cached.getObject());
             }
             for (PersistedList list : externalFields) {
+                // Lazy lists load themselves when first used
+                if (list.isLazy()) {
+                    for (Object instance : instances) {
+                        list.bindLazy(instance);
+                    }
+                    continue;
+                }
                 DataTable listTable = getListTable(list);
                 store.load(listTable);
                 list.load(listTable, instances);
@@ -690,11 +2011,46 @@ public class PersistentClass implements PersistedClass {
         }
     }
 
+    /**
+     * Get the class to create for a row of data.
+     * 
+     * @param row The row
+     * 
+     * @return The subclass named in the row, if any, or this class
+     */
+    protected Class<? extends Object> getInstanceClass(DataRow row) {
+        if (!isSubclassed()) {
+            return persistClass;
+        }
+        DataField classField = row.get(SUBCLASS_COLUMN);
+        Object className = classField == null ? null : classField.getValue();
+        if (className == null || className.equals(persistClass.getName())) {
+            return persistClass;
+        }
+
+        Class<? extends Object> subClass = subclassMap.get(className);
+        if (subClass == null) {
+            try {
+                Class<?> namedClass = Class.forName(className.toString(), true, persistClass.getClassLoader());
+                if (persistClass.isAssignableFrom(namedClass)) {
+                    subClass = namedClass.asSubclass(persistClass);
+                }
+            } catch (ClassNotFoundException e) {
+            }
+            if (subClass == null) {
+                log.warning("Persistence: " + schemaName + "." + name + ", unknown subclass " + className + ", loading as " + persistClass.getName());
+                subClass = persistClass;
+            }
+            subclassMap.put(className.toString(), subClass);
+        }
+        return subClass;
+    }
+
     protected Object createInstance(DataRow row) throws InvalidDataException {
         Object newObject = null;
 
         try {
-            newObject = persistClass.newInstance();
+            newObject = getInstanceClass(row).newInstance();
             load(row, newObject);
         } catch (IllegalAccessException ex) {
             throw new InvalidDataException(row.getTable(), row, ex);
@@ -766,14 +2122,6 @@ public class PersistentClass implements PersistedClass {
         Object id = null;
         if (!autogenerate) {
             id = getId(o);
-            if (id != null) {
-                // Check to see if this object has already been removed, if so
-                // un-remove it
-                CachedObject removedObject = removedMap.get(id);
-                if (removedObject != null) {
-                    removedMap.remove(id);
-                }
-            }
             if (concreteId == null) {
                 concreteId = getIdData(o);
             }
@@ -797,7 +2145,7 @@ public class PersistentClass implements PersistedClass {
                 intValue = (Long) DataType.convertValue(id, Long.class);
             }
             if (intValue == null || intValue <= 0) {
-                intValue = maxId++;
+                intValue = idAllocator.allocate();
                 if (usingLong) {
                     id = intValue;
                 } else {
@@ -813,34 +2161,47 @@ public class PersistentClass implements PersistedClass {
             }
         }
 
-        if (id == null && concreteId == null) {
+        // The concrete (data) id is used as the key, since with "object as
+        // id" the id object may not be loaded yet.
+        Object key = normalizeKey(concreteId);
+        if (key == null) {
             return null;
         }
 
+        // Check to see if this object has already been removed, if so
+        // un-remove it
+        removedMap.remove(key);
+
         CachedObject cached = new CachedObject(o);
-        if (id != null) {
-            cacheMap.put(id, cached);
+        cacheMap.put(key, cached);
+        if (id != null && isObjectId()) {
+            objectIdMap.put(id, cached);
         }
-        if (concreteId != null) {
-            concreteIdMap.put(concreteId, cached);
+        addToPartition(key, cached);
+        for (FieldIndex index : indexMap.values()) {
+            index.add(key, cached);
         }
 
         return cached;
     }
 
-    protected void removeFromCache(Object id) {
-        CachedObject co = cacheMap.get(id);
+    protected void removeFromCache(Object key) {
+        CachedObject co = cacheMap.remove(key);
         if (co == null) {
             return;
         }
 
-        if (cacheMap.containsKey(id)) {
-            cacheMap.remove(id);
+        if (isObjectId()) {
+            Object id = getId(co.getObject());
+            if (id != null) {
+                objectIdMap.remove(id);
+            }
         }
-        if (concreteIdMap.containsKey(id)) {
-            concreteIdMap.remove(id);
+        removeFromPartition(key, co);
+        for (FieldIndex index : indexMap.values()) {
+            index.remove(key);
         }
-        removedMap.put(id, co);
+        removedMap.put(key, co);
     }
 
     public EntityInfo getEntityInfo() {
@@ -851,47 +2212,115 @@ public class PersistentClass implements PersistedClass {
      * Will create a table if it does not exist, and migrate data as necessary
      * if it does exist.
      * 
+     * New columns are added in place, so existing data is kept. If the store
+     * can't migrate the table, it is dropped and re-created, unless this
+     * entity has custom migration steps.
+     * 
      * @param table The table definition. If this differs from the stored
      *            definition, data migration will occur.
      * 
      * @return true if success
      * 
-     * @see #tableExists(DataTable)
+     * @see DataStore#migrate(DataTable)
      */
     public boolean migrateEntity(DataStore store, DataTable table) {
-        if (!store.tableExists(table.getName())) {
-            store.create(table);
+        if (store.migrate(table)) {
             return true;
         }
 
-        // Migrate data
-        DataTable currentTable = store.getTableHeader(table.getName());
-        DataRow tableHeader = table.getHeader();
-        DataRow currentHeader = currentTable.getHeader();
-        if (tableHeader.isMigrationRequired(currentHeader)) {
-            MigrationInfo migrateInfo = getMigrationInfo();
-
-            // TODO: Support types other than auto reset
-            if (migrateInfo == null) {
-                log.info("Persistence: Auto-migrating entity " + getSchema() + "." + getName());
-
-                /*
-                 * TODO! String autoBackupTable = table.getName() +
-                 * "_autoBackup"; if (tableExists(autoBackupTable)) {
-                 * drop(autoBackupTable); }
-                 * currentTable.setName(autoBackupTable); create(currentTable);
-                 */
-                store.drop(currentTable.getName());
-                store.create(table);
-            } else {
-                // Custom migration not supported- just dump error.
-                logMigrateError(getSchemaName(), getName());
-            }
+        if (getMigrationInfo() != null) {
+            logMigrateError(getSchemaName(), table.getName());
+            return false;
         }
 
+        log.info("Persistence: Auto-migrating entity " + getSchemaName() + "." + table.getName());
+        store.drop(table.getName());
+        store.create(table);
+
         return true;
     }
 
+    /**
+     * Perform any migration steps that have not yet been performed on this
+     * entity.
+     * 
+     * Steps are recorded in the global migration table once they have been
+     * performed. If a step fails, it and any following steps will be tried
+     * again next time.
+     * 
+     * @param store The store to migrate
+     * @param table The class table definition
+     * @param created true if the table was just created, in which case steps
+     *            are recorded but not performed
+     */
+    protected void applyMigrationSteps(DataStore store, DataTable table, boolean created) {
+        if (migrationInfo == null || migrationInfo.getSteps() == null) {
+            return;
+        }
+
+        List<MigrationStep> completedSteps = new ArrayList<MigrationStep>();
+        persistence.getAll(completedSteps, MigrationStep.class);
+
+        boolean stepsCompleted = false;
+        for (MigrationStep step : migrationInfo.getSteps()) {
+            if (isMigrationStepCompleted(step, completedSteps)) {
+                continue;
+            }
+
+            if (!created && !applyMigrationStep(store, table, step)) {
+                logMigrateError(getSchemaName(), table.getName());
+                break;
+            }
+
+            persistence.put(step);
+            stepsCompleted = true;
+        }
+
+        // Record completed steps right away, so they won't be repeated.
+        if (stepsCompleted) {
+            try {
+                persistence.getPersistedClass(MigrationStep.class).save();
+            } catch (InvalidPersistedClassException e) {
+                log.warning("Persistence: Can't record migration of " + schemaName + "." + name + ", steps may be repeated: " + e.getMessage());
+            }
+        }
+    }
+
+    protected boolean applyMigrationStep(DataStore store, DataTable table, MigrationStep step) {
+        MigrationType type = step.getType();
+        if (type == null) {
+            return false;
+        }
+
+        log.info("Persistence: Migrating entity " + getSchemaName() + "." + getName() + ", step " + step.getStepId());
+        switch (type) {
+        case AUTO:
+            return true;
+        case RESET:
+            for (PersistedList list : externalFields) {
+                store.drop(list.getTableName());
+            }
+            store.drop(table.getName());
+            return store.create(table);
+        case STATEMENT:
+            return store.execute(step.getSQLStatement());
+        case BACKFILL:
+            return store.backfill(table.getName(), step.getColumn(), step.getSqlData(), migrationBatchSize) >= 0;
+        }
+
+        // Scripts are not supported yet
+        return false;
+    }
+
+    protected boolean isMigrationStepCompleted(MigrationStep step, List<MigrationStep> completedSteps) {
+        for (MigrationStep completed : completedSteps) {
+            if (step.getStepId().equals(completed.getStepId()) && getName().equals(completed.getEntity()) && getSchemaName().equals(completed.getSchema())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     protected void logMigrateError(String schema, String table) {
         log.warning("Persistence: Can't migrate entity " + schema + "." + table);
         log.warning("             If you continue to have issues, please delete the table " + table + " in the " + schema + " database");
@@ -7,6 +7,7 @@ import java.util.List;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import com.elmakers.mine.bukkit.data.AggregateFunction;
 import com.elmakers.mine.bukkit.persistence.PersistedField;
 import com.elmakers.mine.bukkit.persistence.PersistedList;
 import com.elmakers.mine.bukkit.persistence.Persistence;
@@ -102,8 +103,21 @@ public class PersistenceCommands
         for (PersistedField field : persisted.getPersistedFields())
         {
             String entityMessage = " " + field.getName() + " : " + field.getDataType();
+            if (isNumeric(field))
+            {
+                // Computed by the store, if the entity isn't loaded
+                Class<? extends Object> type = persisted.getType();
+                Object min = persisted.aggregate(type, AggregateFunction.MIN, field.getName());
+                Object max = persisted.aggregate(type, AggregateFunction.MAX, field.getName());
+                if (min != null && max != null)
+                {
+                    entityMessage += " (" + min + " - " + max + ")";
+                }
+            }
             messageOutput.sendMessage(entityMessage);
         }
+        messageOutput.sendMessage(" " + persisted.count() + " objects");
+        messageOutput.sendMessage(" saved " + persisted.getSavedCount() + ", skipped " + persisted.getSkippedCount() + " unchanged");
     }
 
     protected void describeSchema(CommandSender messageOutput, String schemaName)
@@ -248,10 +262,15 @@ public class PersistenceCommands
             return;
         }
 
+        // Only read the columns that fit on screen, without loading lists
         String heading = "";
-        List<String> rows = new ArrayList<String>();
+        List<String> fieldNames = new ArrayList<String>();
         for (PersistedField field : persisted.getPersistedFields())
         {
+            if (field instanceof PersistedList || field.isContained())
+            {
+                continue;
+            }
             String fieldName = field.getName();
             fieldName = padColumn(fieldName);
 
@@ -261,18 +280,15 @@ public class PersistenceCommands
                 break;
             }
             heading = newHeading;
+            fieldNames.add(field.getName());
         }
 
-        int lineCount = 0;
-        List<Object> entities = new ArrayList<Object>();
-        persisted.getAll(entities);
-
-        for (Object entity : entities)
+        List<String> rows = new ArrayList<String>();
+        for (Object[] record : persisted.project(persisted.getType(), fieldNames, maxLineCount))
         {
             String row = "";
-            for (PersistedField field : persisted.getPersistedFields())
+            for (Object data : record)
             {
-                Object data = field.get(entity);
                 String dataField = "null";
                 if (data != null)
                 {
@@ -288,11 +304,6 @@ public class PersistenceCommands
             }
 
             rows.add(row);
-
-            if (lineCount >= maxLineCount)
-            {
-                break;
-            }
         }
 
         messageOutput.sendMessage(heading);
@@ -398,15 +409,12 @@ public class PersistenceCommands
             return;
         }
 
-        List<Object> entities = new ArrayList<Object>();
-        persisted.getAll(entities);
-
-        entityListMessage.sendTo(messageOutput, schemaName, entityName, entities.size());
+        entityListMessage.sendTo(messageOutput, schemaName, entityName, persisted.count());
 
         int idCount = 0;
         List<String> idLines = new ArrayList<String>();
         String currentLine = "";
-        for (Object entity : entities)
+        for (Object entity : persisted.iterate())
         {
             boolean firstInLine = currentLine.length() == 0;
 
@@ -433,6 +441,7 @@ public class PersistenceCommands
             if (idCount >= maxIdCount)
             {
                 currentLine += "...";
+                break;
             }
         }
         if (currentLine.length() > 0)
@@ -456,6 +465,25 @@ public class PersistenceCommands
         }
     }
 
+    protected boolean isNumeric(PersistedField field)
+    {
+        if (field instanceof PersistedList || field.getReferenceType() != null)
+        {
+            return false;
+        }
+        switch (field.getDataType())
+        {
+            case BYTE:
+            case DOUBLE:
+            case FLOAT:
+            case INTEGER:
+            case LONG:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     public boolean onDescribe(CommandSender messageOutput, String[] parameters)
     {
         if (parameters.length < 1)
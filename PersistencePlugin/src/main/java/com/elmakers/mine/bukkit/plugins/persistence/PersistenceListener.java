@@ -49,7 +49,7 @@ public class PersistenceListener extends PlayerListener
         if (playerData != null)
         {
             playerData.disconnect(player);
-            persistence.put(playerData);
+            persistence.flush(playerData);
         }
     }
 }
@@ -21,6 +21,7 @@ import org.bukkit.util.BlockVector;
 import com.elmakers.mine.bukkit.data.DataStoreProvider;
 import com.elmakers.mine.bukkit.groups.GroupManager;
 import com.elmakers.mine.bukkit.permission.PermissionManager;
+import com.elmakers.mine.bukkit.persisted.CachedObject;
 import com.elmakers.mine.bukkit.persisted.EntityInfo;
 import com.elmakers.mine.bukkit.persisted.FieldInfo;
 import com.elmakers.mine.bukkit.persisted.Persisted;
@@ -60,6 +61,8 @@ public class PersistencePlugin extends JavaPlugin
         return log;
     }
 
+    private int                                  clockTaskId     = -1;
+
     private DataStoreProvider                    defaultProvider = null;
 
     private GroupManager                         groups          = null;
@@ -72,6 +75,8 @@ public class PersistencePlugin extends JavaPlugin
 
     private final PersistenceListener            listener        = new PersistenceListener();
 
+    private final PersistenceWorldListener       worldListener   = new PersistenceWorldListener();
+
     /*
      * Helper functions
      */
@@ -215,6 +220,17 @@ public class PersistencePlugin extends JavaPlugin
 
         pm.registerEvent(Type.PLAYER_QUIT, listener, Priority.Normal, this);
         pm.registerEvent(Type.PLAYER_JOIN, listener, Priority.Normal, this);
+        pm.registerEvent(Type.WORLD_LOADED, worldListener, Priority.Normal, this);
+
+        // Update the cache clock once per tick, so cache accesses don't
+        // need to check the system time.
+        clockTaskId = getServer().getScheduler().scheduleSyncRepeatingTask(this, new Runnable()
+        {
+            public void run()
+            {
+                CachedObject.tick();
+            }
+        }, 1, 1);
     }
 
     /*
@@ -244,6 +260,12 @@ public class PersistencePlugin extends JavaPlugin
      */
     public void onDisable()
     {
+        if (clockTaskId != -1)
+        {
+            getServer().getScheduler().cancelTask(clockTaskId);
+            clockTaskId = -1;
+        }
+
         if (persistence != null)
         {
             persistence.save();
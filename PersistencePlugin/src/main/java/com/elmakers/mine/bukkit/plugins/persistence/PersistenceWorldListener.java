@@ -0,0 +1,18 @@
+package com.elmakers.mine.bukkit.plugins.persistence;
+
+import org.bukkit.event.world.WorldEvent;
+import org.bukkit.event.world.WorldListener;
+
+import com.elmakers.mine.bukkit.persistence.dao.WorldData;
+
+public class PersistenceWorldListener extends WorldListener
+{
+    @Override
+    public void onWorldLoaded(WorldEvent event)
+    {
+        // Drop any WorldData cached for an older world of the same name, and
+        // index the new one, so blocks stored for it can find it.
+        WorldData.invalidate(event.getWorld());
+        WorldData.getWorldIndex(event.getWorld());
+    }
+}
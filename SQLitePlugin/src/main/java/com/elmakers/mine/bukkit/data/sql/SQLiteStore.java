@@ -87,6 +87,10 @@ public class SQLiteStore extends SqlStore
         {
             return DataType.STRING;
         }
+        else if (typeName.equalsIgnoreCase("BLOB"))
+        {
+            return DataType.BLOB;
+        }
 
         return DataType.NULL;
     }
@@ -112,6 +116,8 @@ public class SQLiteStore extends SqlStore
                 return "REAL";
             case STRING:
                 return "TEXT";
+            case BLOB:
+                return "BLOB";
         }
         return null;
     }
@@ -0,0 +1,8 @@
+package com.elmakers.mine.bukkit.utilities;
+
+public interface BlockApplyListener
+{
+    public void onComplete(BlockApplyTask task);
+
+    public void onProgress(BlockApplyTask task);
+}
@@ -0,0 +1,164 @@
+package com.elmakers.mine.bukkit.utilities;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Applies large block changes (undo, fill) over several server ticks.
+ * 
+ * Each tick, queued tasks are run in order until a block count or time budget
+ * is used up, so that a large undo doesn't freeze the server. Task listeners
+ * are told about progress after each tick a task runs, and when it completes
+ * or is cancelled.
+ * 
+ * This must only be used from the server thread.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class BlockApplyScheduler implements Runnable
+{
+    private int                              maxBlocksPerTick = 4096;
+
+    private long                             maxNanosPerTick  = 10000000;
+
+    private final Plugin                     owner;
+
+    private int                              taskId           = -1;
+
+    private final LinkedList<BlockApplyTask> tasks            = new LinkedList<BlockApplyTask>();
+
+    public BlockApplyScheduler(Plugin owner)
+    {
+        this.owner = owner;
+    }
+
+    /**
+     * Cancel all queued tasks.
+     */
+    public void cancelAll()
+    {
+        for (BlockApplyTask task : tasks)
+        {
+            task.cancel();
+        }
+        run();
+    }
+
+    public int getMaxBlocksPerTick()
+    {
+        return maxBlocksPerTick;
+    }
+
+    public long getMaxNanosPerTick()
+    {
+        return maxNanosPerTick;
+    }
+
+    public boolean isRunning()
+    {
+        return taskId != -1;
+    }
+
+    public void run()
+    {
+        long deadline = System.nanoTime() + maxNanosPerTick;
+        int remaining = maxBlocksPerTick;
+
+        // Listeners are called after the queue has been updated, in case
+        // they schedule new tasks.
+        List<BlockApplyTask> progressed = new ArrayList<BlockApplyTask>();
+        List<BlockApplyTask> completed = new ArrayList<BlockApplyTask>();
+        Iterator<BlockApplyTask> it = tasks.iterator();
+        while (it.hasNext())
+        {
+            BlockApplyTask task = it.next();
+            if (remaining > 0 && System.nanoTime() < deadline)
+            {
+                int count = task.run(remaining, deadline);
+                remaining -= count;
+                if (count > 0)
+                {
+                    progressed.add(task);
+                }
+            }
+            if (task.isFinished())
+            {
+                it.remove();
+                completed.add(task);
+            }
+        }
+
+        for (BlockApplyTask task : progressed)
+        {
+            if (task.getListener() != null)
+            {
+                task.getListener().onProgress(task);
+            }
+        }
+        for (BlockApplyTask task : completed)
+        {
+            if (task.getListener() != null)
+            {
+                task.getListener().onComplete(task);
+            }
+        }
+
+        if (tasks.isEmpty())
+        {
+            stop();
+        }
+    }
+
+    /**
+     * Queue a task, to be run over the next server ticks.
+     * 
+     * @param task
+     *            The task to run
+     * @return The task
+     */
+    public BlockApplyTask schedule(BlockApplyTask task)
+    {
+        tasks.add(task);
+        if (taskId == -1)
+        {
+            taskId = owner.getServer().getScheduler().scheduleSyncRepeatingTask(owner, this, 1, 1);
+        }
+        return task;
+    }
+
+    /**
+     * Set the most blocks to apply in each server tick.
+     * 
+     * @param maxBlocks
+     *            The block budget
+     */
+    public void setMaxBlocksPerTick(int maxBlocks)
+    {
+        maxBlocksPerTick = maxBlocks;
+    }
+
+    /**
+     * Set the most time to spend applying blocks in each server tick.
+     * 
+     * @param maxMillis
+     *            The time budget, in milliseconds
+     */
+    public void setMaxTimePerTick(int maxMillis)
+    {
+        maxNanosPerTick = maxMillis * 1000000L;
+    }
+
+    protected void stop()
+    {
+        if (taskId != -1)
+        {
+            owner.getServer().getScheduler().cancelTask(taskId);
+            taskId = -1;
+        }
+    }
+}
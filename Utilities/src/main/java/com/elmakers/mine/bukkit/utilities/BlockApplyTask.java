@@ -0,0 +1,255 @@
+package com.elmakers.mine.bukkit.utilities;
+
+import java.util.Arrays;
+
+import org.bukkit.World;
+
+/**
+ * A set of block changes to be applied a few at a time, by a
+ * BlockApplyScheduler.
+ * 
+ * Blocks are applied in chunk order. Blocks in chunks that aren't loaded are
+ * deferred, and retried once every other block has been applied, until their
+ * chunks load or the task is cancelled.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public abstract class BlockApplyTask
+{
+    // Blocks are ordered by chunk, then index- index takes the low bits
+    protected static final int   INDEX_BITS = 24;
+
+    protected static final long  INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    public static final int      MAX_BLOCKS = 1 << INDEX_BITS;
+
+    protected int                applied    = 0;
+
+    protected boolean            cancelled  = false;
+
+    protected int[]              deferred;
+
+    protected int                deferredCount;
+
+    protected BlockApplyListener listener   = null;
+
+    protected long[]             order      = null;
+
+    protected int                position   = 0;
+
+    protected int                total;
+
+    protected BlockApplyTask(int total)
+    {
+        if (total > MAX_BLOCKS)
+        {
+            throw new IllegalArgumentException("Too many blocks: " + total + ", max " + MAX_BLOCKS);
+        }
+        this.total = total;
+    }
+
+    /**
+     * Stop applying blocks.
+     * 
+     * Blocks that have already been applied are not reverted.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public int getApplied()
+    {
+        return applied;
+    }
+
+    /**
+     * Get the number of blocks waiting for their chunks to load.
+     * 
+     * @return The deferred block count
+     */
+    public int getDeferred()
+    {
+        return deferredCount;
+    }
+
+    public BlockApplyListener getListener()
+    {
+        return listener;
+    }
+
+    public int getTotal()
+    {
+        return total;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public boolean isFinished()
+    {
+        return cancelled || position >= total && deferredCount == 0;
+    }
+
+    /**
+     * Apply blocks, until out of blocks or budget.
+     * 
+     * @param maxBlocks
+     *            The most blocks to apply or defer
+     * @param deadline
+     *            The System.nanoTime() to stop at
+     * @return The number of blocks processed
+     */
+    public int run(int maxBlocks, long deadline)
+    {
+        if (cancelled)
+        {
+            return 0;
+        }
+        if (order == null)
+        {
+            sort();
+        }
+
+        int count = 0;
+        World lastWorld = null;
+        int lastChunkX = 0;
+        int lastChunkZ = 0;
+        boolean lastLoaded = false;
+
+        while (position < total && count < maxBlocks)
+        {
+            if ((count & 63) == 0 && count > 0 && System.nanoTime() > deadline)
+            {
+                return count;
+            }
+            int index = (int) (order[position++] & INDEX_MASK);
+            World world = getWorld(index);
+            int chunkX = getX(index) >> 4;
+            int chunkZ = getZ(index) >> 4;
+            if (count == 0 || world != lastWorld || chunkX != lastChunkX || chunkZ != lastChunkZ)
+            {
+                lastWorld = world;
+                lastChunkX = chunkX;
+                lastChunkZ = chunkZ;
+                lastLoaded = world != null && world.isChunkLoaded(chunkX, chunkZ);
+            }
+
+            if (lastLoaded)
+            {
+                apply(index);
+                applied++;
+            }
+            else
+            {
+                defer(index);
+            }
+            count++;
+        }
+
+        if (position >= total && deferredCount > 0 && count < maxBlocks)
+        {
+            count += retryDeferred(maxBlocks - count);
+        }
+        return count;
+    }
+
+    public void setListener(BlockApplyListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Apply a single block.
+     * 
+     * This is only called once the block's chunk is known to be loaded.
+     * 
+     * @param index
+     *            The index of the block
+     */
+    protected abstract void apply(int index);
+
+    protected void defer(int index)
+    {
+        if (deferred == null)
+        {
+            deferred = new int[16];
+        }
+        else if (deferredCount == deferred.length)
+        {
+            int[] grown = new int[deferredCount * 2];
+            System.arraycopy(deferred, 0, grown, 0, deferredCount);
+            deferred = grown;
+        }
+        deferred[deferredCount++] = index;
+    }
+
+    protected abstract World getWorld(int index);
+
+    protected abstract int getX(int index);
+
+    protected abstract int getZ(int index);
+
+    protected int retryDeferred(int maxBlocks)
+    {
+        int count = 0;
+        int remaining = 0;
+        World lastWorld = null;
+        int lastChunkX = 0;
+        int lastChunkZ = 0;
+        boolean lastLoaded = false;
+
+        // Deferred blocks are still in chunk order, so only check each chunk
+        // once.
+        for (int i = 0; i < deferredCount; i++)
+        {
+            int index = deferred[i];
+            World world = getWorld(index);
+            int chunkX = getX(index) >> 4;
+            int chunkZ = getZ(index) >> 4;
+            if (i == 0 || world != lastWorld || chunkX != lastChunkX || chunkZ != lastChunkZ)
+            {
+                lastWorld = world;
+                lastChunkX = chunkX;
+                lastChunkZ = chunkZ;
+                lastLoaded = world != null && world.isChunkLoaded(chunkX, chunkZ);
+            }
+            if (count < maxBlocks && lastLoaded)
+            {
+                apply(index);
+                applied++;
+                count++;
+            }
+            else
+            {
+                deferred[remaining++] = index;
+            }
+        }
+        deferredCount = remaining;
+        return count;
+    }
+
+    protected void sort()
+    {
+        order = new long[total];
+        if (total == 0)
+        {
+            return;
+        }
+
+        // Chunk coordinates are taken relative to the first block, so 20
+        // bits each is plenty.
+        int baseChunkX = getX(0) >> 4;
+        int baseChunkZ = getZ(0) >> 4;
+        for (int i = 0; i < total; i++)
+        {
+            long chunkX = (getX(i) >> 4) - baseChunkX & 0xFFFFF;
+            long chunkZ = (getZ(i) >> 4) - baseChunkZ & 0xFFFFF;
+            order[i] = chunkX << 44 | chunkZ << INDEX_BITS | i;
+        }
+        Arrays.sort(order);
+    }
+}
@@ -0,0 +1,306 @@
+package com.elmakers.mine.bukkit.utilities;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.plugin.Plugin;
+
+import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+
+/**
+ * Ages BlockLists by server tick, and tells a listener when they expire.
+ * 
+ * This replaces calling age() on every BlockList each tick. Lists are kept
+ * in a hierarchical timing wheel, filed by the tick they expire on- each
+ * tick only the lists expiring on that tick are touched, plus an occasional
+ * cascade of later lists down to a finer wheel.
+ * 
+ * A BlockList's time to live is counted in ticks. Lists with repetitions
+ * left are re-filed after each pass, and their listener's onRepeat is
+ * called. After the last pass the list is removed, and onExpire is called.
+ * 
+ * This must only be used from the server thread.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class BlockListTimer implements Runnable
+{
+    protected static final int                    LEVELS     = 4;
+
+    protected static final int                    SLOT_BITS  = 6;
+
+    protected static final int                    SLOTS      = 1 << SLOT_BITS;
+
+    protected static final int                    SLOT_MASK  = SLOTS - 1;
+
+    // Lists expiring further out than this are re-filed when they get closer
+    protected static final long                   MAX_DELAY  = 1L << SLOT_BITS * LEVELS;
+
+    private final Map<BlockList, TimerEntry>      entries    = new IdentityHashMap<BlockList, TimerEntry>();
+
+    private final Plugin                          owner;
+
+    private int                                   taskId     = -1;
+
+    // The next tick to run
+    private long                                  tick       = 0;
+
+    private final TimerEntry[][]                  wheels     = new TimerEntry[LEVELS][SLOTS];
+
+    public BlockListTimer(Plugin owner)
+    {
+        this.owner = owner;
+        for (TimerEntry[] wheel : wheels)
+        {
+            for (int i = 0; i < SLOTS; i++)
+            {
+                wheel[i] = new TimerEntry(null, null);
+            }
+        }
+    }
+
+    /**
+     * Stop timing a BlockList.
+     * 
+     * @param blocks
+     *            The list to stop timing
+     * @return false if the list wasn't being timed
+     */
+    public boolean cancel(BlockList blocks)
+    {
+        TimerEntry entry = entries.remove(blocks);
+        if (entry == null)
+        {
+            return false;
+        }
+        entry.unlink();
+        if (entries.isEmpty())
+        {
+            stop();
+        }
+        return true;
+    }
+
+    public void cancelAll()
+    {
+        for (TimerEntry entry : entries.values())
+        {
+            entry.unlink();
+        }
+        entries.clear();
+        stop();
+    }
+
+    public long getTick()
+    {
+        return tick;
+    }
+
+    public boolean isScheduled(BlockList blocks)
+    {
+        return entries.containsKey(blocks);
+    }
+
+    public void run()
+    {
+        int index = (int) (tick & SLOT_MASK);
+
+        // Move the lists for the next stretch of ticks down a level
+        for (int level = 1; level < LEVELS && index == 0; level++)
+        {
+            index = (int) (tick >> SLOT_BITS * level & SLOT_MASK);
+            List<TimerEntry> cascaded = detach(wheels[level][index]);
+            for (TimerEntry entry : cascaded)
+            {
+                add(entry);
+            }
+        }
+
+        List<TimerEntry> due = detach(wheels[0][(int) (tick & SLOT_MASK)]);
+        tick++;
+
+        // Listeners may cancel or schedule lists, so check each entry is
+        // still current before firing it.
+        for (TimerEntry entry : due)
+        {
+            if (entries.get(entry.blocks) == entry)
+            {
+                fire(entry);
+            }
+        }
+
+        if (entries.isEmpty())
+        {
+            stop();
+        }
+    }
+
+    /**
+     * Start timing a BlockList, from its current time remaining.
+     * 
+     * If the list is already being timed, it is re-filed, and given the new
+     * listener.
+     * 
+     * @param blocks
+     *            The list to time
+     * @param listener
+     *            The listener to call when the list repeats or expires
+     */
+    public void schedule(BlockList blocks, BlockListTimerListener listener)
+    {
+        TimerEntry entry = entries.get(blocks);
+        if (entry == null)
+        {
+            entry = new TimerEntry(blocks, listener);
+            entries.put(blocks, entry);
+        }
+        else
+        {
+            entry.unlink();
+            entry.listener = listener;
+        }
+        file(entry);
+
+        if (taskId == -1)
+        {
+            taskId = owner.getServer().getScheduler().scheduleSyncRepeatingTask(owner, this, 1, 1);
+        }
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    protected void add(TimerEntry entry)
+    {
+        long delay = Math.max(entry.expires - tick, 0);
+        long slotTick = tick + delay;
+        if (delay >= MAX_DELAY)
+        {
+            slotTick = tick + MAX_DELAY - 1;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << SLOT_BITS * (level + 1))
+        {
+            level++;
+        }
+
+        int index = (int) (slotTick >> SLOT_BITS * level & SLOT_MASK);
+        entry.linkAfter(wheels[level][index]);
+    }
+
+    protected List<TimerEntry> detach(TimerEntry head)
+    {
+        List<TimerEntry> detached = new ArrayList<TimerEntry>();
+        TimerEntry entry = head.next;
+        while (entry != head)
+        {
+            TimerEntry next = entry.next;
+            entry.next = null;
+            entry.previous = null;
+            detached.add(entry);
+            entry = next;
+        }
+        head.next = head;
+        head.previous = head;
+        return detached;
+    }
+
+    // File an entry by its list's time remaining, from now
+    protected void file(TimerEntry entry)
+    {
+        entry.started = tick;
+        entry.expires = tick + Math.max(entry.blocks.getTimeRemaining(), 1) - 1;
+        add(entry);
+    }
+
+    protected void fire(TimerEntry entry)
+    {
+        BlockList blocks = entry.blocks;
+        if (!blocks.age((int) (tick - entry.started)))
+        {
+            // The list's time was changed while it was filed
+            file(entry);
+            return;
+        }
+
+        if (blocks.getPassesRemaining() > 0)
+        {
+            file(entry);
+            if (entry.listener != null)
+            {
+                entry.listener.onRepeat(blocks);
+            }
+            return;
+        }
+
+        entries.remove(blocks);
+        if (entry.listener != null)
+        {
+            entry.listener.onExpire(blocks);
+        }
+    }
+
+    protected void stop()
+    {
+        if (taskId != -1)
+        {
+            owner.getServer().getScheduler().cancelTask(taskId);
+            taskId = -1;
+        }
+    }
+
+    /**
+     * A timed list, linked into one wheel slot.
+     * 
+     * Each slot has an empty head entry, so linking and unlinking never has
+     * to check for the ends of the slot.
+     */
+    protected static class TimerEntry
+    {
+        protected final BlockList        blocks;
+
+        protected long                   expires;
+
+        protected BlockListTimerListener listener;
+
+        protected TimerEntry             next;
+
+        protected TimerEntry             previous;
+
+        protected long                   started;
+
+        public TimerEntry(BlockList blocks, BlockListTimerListener listener)
+        {
+            this.blocks = blocks;
+            this.listener = listener;
+            next = this;
+            previous = this;
+        }
+
+        public void linkAfter(TimerEntry head)
+        {
+            previous = head;
+            next = head.next;
+            head.next.previous = this;
+            head.next = this;
+        }
+
+        public void unlink()
+        {
+            if (next == null)
+            {
+                return;
+            }
+            previous.next = next;
+            next.previous = previous;
+            next = null;
+            previous = null;
+        }
+    }
+}
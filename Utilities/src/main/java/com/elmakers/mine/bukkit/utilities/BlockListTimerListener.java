@@ -0,0 +1,10 @@
+package com.elmakers.mine.bukkit.utilities;
+
+import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+
+public interface BlockListTimerListener
+{
+    public void onExpire(BlockList blocks);
+
+    public void onRepeat(BlockList blocks);
+}
@@ -1,51 +1,174 @@
 package com.elmakers.mine.bukkit.utilities;
 
+import java.util.Arrays;
+
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 
 import com.elmakers.mine.bukkit.persistence.dao.BlockData;
 import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+import com.elmakers.mine.bukkit.persistence.dao.LongHashSet;
 
+/**
+ * A flood fill, spreading from a starting block to each face of every block
+ * the BlockRecurseAction succeeds on.
+ * 
+ * This is a breadth-first search, so there's no limit to how large a fill can
+ * be other than the configured radius and block count. Each ring of blocks is
+ * visited in chunk order, and visited blocks are tracked by packed id.
+ * 
+ * @author NathanWolf
+ * 
+ */
 public class BlockRecurse
 {
+    // Highest block in a world
+    protected static final int MAX_Y     = 127;
+
+    protected int              maxBlocks = 0;
+
+    protected int              maxRadius = 8;
+
+    /**
+     * Pack block coordinates so that sorting them groups blocks by chunk.
+     * 
+     * Chunk X and Z take 21 bits each, then the block's X and Z within the
+     * chunk and Y take 16 bits.
+     */
+    protected static long getChunkOrderId(int x, int y, int z)
+    {
+        return ((long) (x >> 4) & 0x1FFFFF) << 37 | ((long) (z >> 4) & 0x1FFFFF) << 16 | (x & 0xF) << 12 | (z & 0xF) << 8 | y & 0xFF;
+    }
 
-    protected int maxRecursion = 8;
+    protected static int getX(long chunkOrderId)
+    {
+        return (int) (chunkOrderId << 6 >> 43) << 4 | (int) (chunkOrderId >> 12 & 0xF);
+    }
+
+    protected static int getY(long chunkOrderId)
+    {
+        return (int) (chunkOrderId & 0xFF);
+    }
+
+    protected static int getZ(long chunkOrderId)
+    {
+        return (int) (chunkOrderId << 27 >> 43) << 4 | (int) (chunkOrderId >> 8 & 0xF);
+    }
+
+    public int getMaxBlocks()
+    {
+        return maxBlocks;
+    }
+
+    public int getMaxRadius()
+    {
+        return maxRadius;
+    }
 
     public int recurse(Block startBlock, BlockRecurseAction recurseAction)
     {
         BlockList affectedBlocks = new BlockList();
-        recurse(startBlock, recurseAction, affectedBlocks, null, 0);
+        recurse(startBlock, recurseAction, affectedBlocks);
         recurseAction.setAffectedBlocks(affectedBlocks);
         return affectedBlocks.size();
     }
 
-    protected void recurse(Block block, BlockRecurseAction recurseAction,
-            BlockList affectedBlocks, BlockFace nextFace, int rDepth)
+    /**
+     * Fill outward from a block, recording each block visited (before it is
+     * changed) in a BlockList.
+     * 
+     * @param startBlock
+     *            The block to start from
+     * @param recurseAction
+     *            The action to perform on each block- the fill only spreads
+     *            from blocks it returns true for
+     * @param affectedBlocks
+     *            The list to record visited blocks in
+     */
+    public void recurse(Block startBlock, BlockRecurseAction recurseAction,
+            BlockList affectedBlocks)
     {
-        if (nextFace != null)
-        {
-            block = block.getFace(nextFace);
-        }
-        if (affectedBlocks.contains(block))
-        {
-            return;
-        }
-        affectedBlocks.add(block);
+        World world = startBlock.getWorld();
+        LongHashSet visited = new LongHashSet();
 
-        if (!recurseAction.perform(block))
-        {
-            return;
-        }
+        long startId = getChunkOrderId(startBlock.getX(), startBlock.getY(), startBlock.getZ());
+        visited.add(startId);
+        long[] ring = new long[] { startId };
+        int ringSize = 1;
 
-        if (rDepth < maxRecursion)
+        for (int radius = 0; ringSize > 0; radius++)
         {
-            for (BlockFace face : BlockData.FACES)
+            Arrays.sort(ring, 0, ringSize);
+            long[] nextRing = new long[Math.max(16, ringSize * 2)];
+            int nextRingSize = 0;
+
+            for (int i = 0; i < ringSize; i++)
             {
-                if (nextFace == null || nextFace != BlockData.getReverseFace(face))
+                if (maxBlocks > 0 && affectedBlocks.size() >= maxBlocks)
+                {
+                    return;
+                }
+
+                long blockId = ring[i];
+                int x = getX(blockId);
+                int y = getY(blockId);
+                int z = getZ(blockId);
+                Block block = world.getBlockAt(x, y, z);
+                affectedBlocks.add(block);
+
+                if (!recurseAction.perform(block) || radius >= maxRadius)
                 {
-                    recurse(block, recurseAction, affectedBlocks, face, rDepth + 1);
+                    continue;
+                }
+
+                for (BlockFace face : BlockData.FACES)
+                {
+                    int faceY = y + face.getModY();
+                    if (faceY < 0 || faceY > MAX_Y)
+                    {
+                        continue;
+                    }
+                    long faceId = getChunkOrderId(x + face.getModX(), faceY, z + face.getModZ());
+                    if (!visited.add(faceId))
+                    {
+                        continue;
+                    }
+                    if (nextRingSize == nextRing.length)
+                    {
+                        long[] grown = new long[nextRingSize * 2];
+                        System.arraycopy(nextRing, 0, grown, 0, nextRingSize);
+                        nextRing = grown;
+                    }
+                    nextRing[nextRingSize++] = faceId;
                 }
             }
+
+            ring = nextRing;
+            ringSize = nextRingSize;
         }
     }
+
+    /**
+     * Set the maximum number of blocks to visit.
+     * 
+     * @param maxBlocks
+     *            The block limit, or 0 for no limit
+     */
+    public void setMaxBlocks(int maxBlocks)
+    {
+        this.maxBlocks = maxBlocks;
+    }
+
+    /**
+     * Set how far to spread from the starting block, in steps from face to
+     * face.
+     * 
+     * @param maxRadius
+     *            The maximum radius
+     */
+    public void setMaxRadius(int maxRadius)
+    {
+        this.maxRadius = maxRadius;
+    }
 }
@@ -0,0 +1,109 @@
+package com.elmakers.mine.bukkit.utilities;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import com.elmakers.mine.bukkit.persistence.dao.BoundingBox;
+import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+import com.elmakers.mine.bukkit.persistence.dao.MaterialList;
+
+/**
+ * Fills a BoundingBox with a material, a few blocks at a time.
+ * 
+ * This works like BoundingBox.fill- the maximum corner is exclusive, and an
+ * optional MaterialList limits which blocks may be replaced. Replaced blocks
+ * are recorded in a BlockList (before they are changed), so the fill can be
+ * undone.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class FillTask extends BlockApplyTask
+{
+    protected final BlockList    affected;
+
+    protected final MaterialList destructable;
+
+    protected final Material     material;
+
+    protected final int          minX;
+
+    protected final int          minY;
+
+    protected final int          minZ;
+
+    protected final int          sizeY;
+
+    protected final int          sizeZ;
+
+    protected final World        world;
+
+    /**
+     * Create a new fill task.
+     * 
+     * @param world
+     *            The world to fill
+     * @param area
+     *            The area to fill
+     * @param material
+     *            The material to fill with
+     * @param destructable
+     *            The materials that may be replaced, or null for all
+     * @param affected
+     *            A BlockList to record replaced blocks in, may be null
+     */
+    public FillTask(World world, BoundingBox area, Material material,
+            MaterialList destructable, BlockList affected)
+    {
+        super((int) Math.min(Integer.MAX_VALUE, (long) Math.max(0, area.getSizeX()) * Math.max(0, area.getSizeY()) * Math.max(0, area.getSizeZ())));
+        this.world = world;
+        this.material = material;
+        this.destructable = destructable;
+        this.affected = affected;
+        minX = area.getMin().getBlockX();
+        minY = area.getMin().getBlockY();
+        minZ = area.getMin().getBlockZ();
+        sizeY = area.getSizeY();
+        sizeZ = area.getSizeZ();
+    }
+
+    public BlockList getAffected()
+    {
+        return affected;
+    }
+
+    @Override
+    protected void apply(int index)
+    {
+        Block block = world.getBlockAt(getX(index), minY + index / sizeZ % sizeY, getZ(index));
+        if (destructable != null && !destructable.contains(block.getType()))
+        {
+            return;
+        }
+
+        if (affected != null)
+        {
+            affected.add(block);
+        }
+        block.setType(material);
+    }
+
+    @Override
+    protected World getWorld(int index)
+    {
+        return world;
+    }
+
+    @Override
+    protected int getX(int index)
+    {
+        return minX + index / (sizeY * sizeZ);
+    }
+
+    @Override
+    protected int getZ(int index)
+    {
+        return minZ + index % sizeZ;
+    }
+}
@@ -1,5 +1,6 @@
 package com.elmakers.mine.bukkit.utilities;
 
+import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -32,7 +33,11 @@ import com.elmakers.mine.bukkit.persistence.dao.WorldData;
  */
 public class PluginUtilities
 {
-    private static final Logger     log = Persistence.getLogger();
+    private static final Logger     log            = Persistence.getLogger();
+
+    private BlockApplyScheduler     blockScheduler = null;
+
+    private BlockListTimer          blockTimer     = null;
 
     private final Plugin            owner;
 
@@ -42,6 +47,8 @@ public class PluginUtilities
 
     private PluginData              plugin;
 
+    private UndoJournalManager      undoJournals   = null;
+
     /**
      * Messaging constructor. Use to create an instance of Messaging for your
      * plugin.
@@ -73,11 +80,21 @@ public class PluginUtilities
         // Let the plugin bind its transient command and message instances
         if (plugin.getCommands().isEmpty() && plugin.getMessages().isEmpty())
         {
-            List<Message> allMessages = new ArrayList<Message>();
-            List<PluginCommand> allCommands = new ArrayList<PluginCommand>();
-            persistence.getAll(allMessages, Message.class);
-            persistence.getAll(allCommands, PluginCommand.class);
-            plugin.initializeCache(allMessages, allCommands);
+            // Plugin ids match case-insensitively, so there may be data
+            // stored under more than one plugin record.
+            List<PluginData> allPlugins = new ArrayList<PluginData>();
+            List<Message> pluginMessages = new ArrayList<Message>();
+            List<PluginCommand> pluginCommands = new ArrayList<PluginCommand>();
+            persistence.getAll(allPlugins, PluginData.class);
+            for (PluginData pluginData : allPlugins)
+            {
+                if (pluginData.getId().equalsIgnoreCase(pluginId))
+                {
+                    pluginMessages.addAll(persistence.getBy(Message.class, "plugin", pluginData));
+                    pluginCommands.addAll(persistence.getBy(PluginCommand.class, "plugin", pluginData));
+                }
+            }
+            plugin.initializeCache(pluginMessages, pluginCommands);
         }
 
         playerSender = persistence.get("player", CommandSenderData.class);
@@ -286,6 +303,37 @@ public class PluginUtilities
         return dispatch(listeners, sender, baseCommand, baseParameters);
     }
 
+    /**
+     * Get a scheduler for applying large block changes over several server
+     * ticks, owned by this plugin.
+     * 
+     * @return The block scheduler
+     */
+    public BlockApplyScheduler getBlockScheduler()
+    {
+        if (blockScheduler == null)
+        {
+            blockScheduler = new BlockApplyScheduler(owner);
+        }
+        return blockScheduler;
+    }
+
+    /**
+     * Get a timer for expiring BlockLists, shared by this plugin.
+     * 
+     * Give it to an UndoQueue to have timed batches undone automatically.
+     * 
+     * @return The block list timer
+     */
+    public BlockListTimer getBlockTimer()
+    {
+        if (blockTimer == null)
+        {
+            blockTimer = new BlockListTimer(owner);
+        }
+        return blockTimer;
+    }
+
     /**
      * Retrieve a command description based on id, for a given sender
      * 
@@ -439,6 +487,23 @@ public class PluginUtilities
         return getCommand(commandName, defaultTooltip, defaultUsage, playerSender, pType);
     }
 
+    /**
+     * Get the undo journals for this plugin, kept in an "undo" folder in
+     * its data folder.
+     * 
+     * The plugin should close these when it is disabled.
+     * 
+     * @return The undo journals
+     */
+    public UndoJournalManager getUndoJournals()
+    {
+        if (undoJournals == null)
+        {
+            undoJournals = new UndoJournalManager(owner.getServer(), new File(owner.getDataFolder(), "undo"));
+        }
+        return undoJournals;
+    }
+
     public WorldData getWorld(Server server, String name)
     {
         WorldData data = persistence.get(name, WorldData.class);
@@ -449,10 +514,9 @@ public class PluginUtilities
             {
                 if (world.getName().equalsIgnoreCase(name))
                 {
-                    data = new WorldData(name, world.getEnvironment());
-                    persistence.put(data);
+                    data = WorldData.get(world);
+                    break;
                 }
-                break;
             }
         }
 
@@ -461,17 +525,8 @@ public class PluginUtilities
 
     public WorldData getWorld(Server server, World world)
     {
-        WorldData data = persistence.get(world.getName(), WorldData.class);
-        if (data == null)
-        {
-            data = new WorldData(world);
-            persistence.put(data);
-        }
-        else
-        {
-            data.update(world);
-        }
-
+        WorldData data = WorldData.get(world);
+        data.update(world);
         return data;
     }
 
@@ -0,0 +1,616 @@
+package com.elmakers.mine.bukkit.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bukkit.World;
+
+import com.elmakers.mine.bukkit.persistence.Persistence;
+import com.elmakers.mine.bukkit.persistence.dao.BlockData;
+import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+
+/**
+ * An append-only, memory-mapped journal of undo batches for a single world.
+ * 
+ * Each batch is written as one record- a header, then 13 bytes per block
+ * (packed position, material id and data). Records are never changed once
+ * written, except to mark them expired. Expired records are reclaimed by
+ * copying the live ones to a new file, once they take up more than half of
+ * the journal. The copy is renamed over the journal when it's complete, so a
+ * crash while compacting leaves either the old journal or the complete copy.
+ * 
+ * Block positions are stored without a world index, since world indices are
+ * only valid while the server is running.
+ * 
+ * This is not thread-safe.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class UndoJournal
+{
+    protected static final String      BACKUP_EXTENSION  = ".old";
+
+    protected static final int         BLOCK_SIZE        = 13;
+
+    protected static final String      COMPACT_EXTENSION = ".compact";
+
+    protected static final int         COMPACT_THRESHOLD = 1 << 20;
+
+    protected static final byte        EXPIRED           = 0;
+
+    protected static final int         HEADER_SIZE       = 8;
+
+    protected static final int         INITIAL_SIZE      = 1 << 20;
+
+    private static final Logger        log               = Persistence.getLogger();
+
+    protected static final byte        LIVE              = 1;
+
+    protected static final int         MAGIC             = 0x554E444F;
+
+    // Masks the world index out of a packed block id
+    protected static final long        POSITION_MASK     = (1L << 58) - 1;
+
+    protected static final int         VERSION           = 1;
+
+    protected MappedByteBuffer         buffer;
+
+    protected FileChannel              channel;
+
+    protected int                      end;
+
+    // Expired bytes needed before compacting- raised after a failure, so a
+    // journal that can't be replaced isn't copied on every expire
+    protected int                      compactThreshold  = COMPACT_THRESHOLD;
+
+    protected int                      expiredBytes      = 0;
+
+    protected final File               file;
+
+    protected RandomAccessFile         fileAccess;
+
+    // Live batch id -> record offset, in the order they were written
+    protected final Map<Long, Integer> offsets           = new LinkedHashMap<Long, Integer>();
+
+    protected final Map<Long, String>  owners            = new HashMap<Long, String>();
+
+    protected final String             worldName;
+
+    /**
+     * Open a journal, creating it if it doesn't exist.
+     * 
+     * @param file
+     *            The journal file
+     * @param worldName
+     *            The world this journal is for
+     * @throws IOException
+     *             If the file can't be opened or mapped
+     */
+    public UndoJournal(File file, String worldName) throws IOException
+    {
+        this.file = file;
+        this.worldName = worldName;
+
+        // A compaction was interrupted while replacing the journal. The copy
+        // is complete if the journal had already been moved aside.
+        File compactFile = getCompactFile();
+        File backupFile = getBackupFile();
+        if (!file.exists() && backupFile.exists())
+        {
+            if (!(compactFile.exists() && compactFile.renameTo(file)) && !backupFile.renameTo(file))
+            {
+                throw new IOException("Could not restore " + file.getPath() + " from " + backupFile.getPath());
+            }
+        }
+
+        // Anything else left over from a compaction can go- the journal
+        // itself is intact.
+        deleteLeftover(compactFile);
+        deleteLeftover(backupFile);
+
+        open();
+    }
+
+    /**
+     * Write the blocks of a batch that are in this journal's world.
+     * 
+     * @param batchId
+     *            The batch id
+     * @param owner
+     *            The name of the UndoQueue the batch belongs to
+     * @param blocks
+     *            The batch
+     * @param worldIndex
+     *            The world index of this journal's world
+     * @return true if any blocks were written
+     * @throws IOException
+     *             If the journal couldn't grow
+     */
+    public boolean append(long batchId, String owner, BlockList blocks,
+            int worldIndex) throws IOException
+    {
+        int count = 0;
+        for (int i = 0; i < blocks.size(); i++)
+        {
+            if (BlockData.getWorldIndex(blocks.getBlockId(i)) == worldIndex)
+            {
+                count++;
+            }
+        }
+        if (count == 0)
+        {
+            return false;
+        }
+
+        byte[] ownerBytes = getBytes(owner);
+        int length = 1 + 8 + 2 + ownerBytes.length + 4 + count * BLOCK_SIZE;
+        // Leave room for the zero length that marks the end of the journal
+        ensureCapacity(end + 4 + length + 4);
+
+        ByteBuffer record = buffer.duplicate();
+        record.position(end + 4);
+        record.put(LIVE);
+        record.putLong(batchId);
+        record.putShort((short) ownerBytes.length);
+        record.put(ownerBytes);
+        record.putInt(count);
+        for (int i = 0; i < blocks.size(); i++)
+        {
+            long blockId = blocks.getBlockId(i);
+            if (BlockData.getWorldIndex(blockId) == worldIndex)
+            {
+                record.putLong(blockId & POSITION_MASK);
+                record.putInt(blocks.getMaterialId(i));
+                record.put(blocks.getMaterialData(i));
+            }
+        }
+        record.putInt(0);
+
+        // Write the length last, so a partly written record is never read
+        buffer.putInt(end, length);
+        offsets.put(batchId, end);
+        owners.put(batchId, owner);
+        end += 4 + length;
+        return true;
+    }
+
+    public void close()
+    {
+        try
+        {
+            buffer.force();
+            unmap(buffer);
+            buffer = null;
+            channel.close();
+            fileAccess.close();
+        }
+        catch (IOException e)
+        {
+            log.warning("Persistence: Error closing undo journal " + file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    public boolean contains(long batchId)
+    {
+        return offsets.containsKey(batchId);
+    }
+
+    /**
+     * Mark a batch as expired, so its space can be reclaimed.
+     * 
+     * @param batchId
+     *            The batch to expire
+     */
+    public void expire(long batchId)
+    {
+        Integer offset = offsets.remove(batchId);
+        owners.remove(batchId);
+        if (offset == null)
+        {
+            return;
+        }
+
+        buffer.put(offset + 4, EXPIRED);
+        expiredBytes += 4 + buffer.getInt(offset);
+        if (expiredBytes > compactThreshold && expiredBytes > end / 2)
+        {
+            try
+            {
+                compact();
+            }
+            catch (IOException e)
+            {
+                log.warning("Persistence: Error compacting undo journal " + file.getPath() + ": " + e.getMessage());
+                compactThreshold = Math.max(compactThreshold, expiredBytes) * 2;
+            }
+        }
+    }
+
+    public void flush()
+    {
+        buffer.force();
+    }
+
+    /**
+     * Get the live batches belonging to an UndoQueue.
+     * 
+     * @param owner
+     *            The name of the UndoQueue
+     * @return The batch ids, oldest first
+     */
+    public List<Long> getBatches(String owner)
+    {
+        List<Long> batches = new ArrayList<Long>();
+        for (Long batchId : offsets.keySet())
+        {
+            if (owner.equals(owners.get(batchId)))
+            {
+                batches.add(batchId);
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Get the positions of the blocks in a batch, without reading the
+     * whole batch.
+     * 
+     * @param batchId
+     *            The batch id
+     * @param worldIndex
+     *            The world index to use in the returned block ids
+     * @return The packed block ids, or null if the batch isn't in this
+     *         journal
+     */
+    public long[] getBlockIds(long batchId, int worldIndex)
+    {
+        Integer offset = offsets.get(batchId);
+        if (offset == null)
+        {
+            return null;
+        }
+
+        ByteBuffer record = getBlocks(offset);
+        int count = record.getInt();
+        long worldId = BlockData.getBlockId(worldIndex, 0, 0, 0);
+        long[] blockIds = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            blockIds[i] = record.getLong() | worldId;
+            record.position(record.position() + BLOCK_SIZE - 8);
+        }
+        return blockIds;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the highest batch id in this journal.
+     * 
+     * @return The highest live batch id, or 0 if empty
+     */
+    public long getMaxBatchId()
+    {
+        long maxId = 0;
+        for (Long batchId : offsets.keySet())
+        {
+            maxId = Math.max(maxId, batchId);
+        }
+        return maxId;
+    }
+
+    public String getWorldName()
+    {
+        return worldName;
+    }
+
+    /**
+     * Read a batch back in.
+     * 
+     * @param batchId
+     *            The batch id
+     * @param world
+     *            This journal's world
+     * @param blocks
+     *            The BlockList to add the batch's blocks to
+     * @return false if the batch isn't in this journal
+     */
+    public boolean read(long batchId, World world, BlockList blocks)
+    {
+        Integer offset = offsets.get(batchId);
+        if (offset == null)
+        {
+            return false;
+        }
+
+        ByteBuffer record = getBlocks(offset);
+        int count = record.getInt();
+        for (int i = 0; i < count; i++)
+        {
+            long position = record.getLong();
+            int materialId = record.getInt();
+            byte data = record.get();
+            blocks.add(world, BlockData.getBlockX(position), BlockData.getBlockY(position), BlockData.getBlockZ(position), materialId, data);
+        }
+        return true;
+    }
+
+    /**
+     * Copy the live records to a new file, and replace the journal with it.
+     * 
+     * The new file is complete, and forced to disk, before it is renamed over
+     * the journal. The journal is unmapped first, since some platforms won't
+     * rename over a mapped file.
+     * 
+     * @throws IOException
+     *             If the copy couldn't be written or renamed, in which case
+     *             the journal is left as it was
+     */
+    protected void compact() throws IOException
+    {
+        File compactFile = getCompactFile();
+        RandomAccessFile compactAccess = new RandomAccessFile(compactFile, "rw");
+        try
+        {
+            FileChannel compactChannel = compactAccess.getChannel();
+            compactChannel.truncate(0);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.flip();
+            compactChannel.write(header);
+
+            int position = HEADER_SIZE;
+            while (position < end)
+            {
+                int size = 4 + buffer.getInt(position);
+                if (buffer.get(position + 4) == LIVE)
+                {
+                    ByteBuffer record = buffer.duplicate();
+                    record.position(position);
+                    record.limit(position + size);
+                    while (record.hasRemaining())
+                    {
+                        compactChannel.write(record);
+                    }
+                }
+                position += size;
+            }
+
+            // The zero length that marks the end of the journal
+            ByteBuffer terminator = ByteBuffer.allocate(4);
+            compactChannel.write(terminator);
+            compactChannel.force(true);
+        }
+        catch (IOException e)
+        {
+            compactAccess.close();
+            compactFile.delete();
+            throw e;
+        }
+        compactAccess.close();
+
+        close();
+        boolean replaced = replace(compactFile);
+
+        offsets.clear();
+        owners.clear();
+        expiredBytes = 0;
+        open();
+
+        if (!replaced)
+        {
+            deleteLeftover(compactFile);
+            throw new IOException("Could not replace " + file.getPath() + " with " + compactFile.getPath());
+        }
+        compactThreshold = COMPACT_THRESHOLD;
+    }
+
+    protected void deleteLeftover(File leftover)
+    {
+        if (leftover.exists() && !leftover.delete())
+        {
+            log.warning("Persistence: Could not delete " + leftover.getPath());
+        }
+    }
+
+    protected void ensureCapacity(int size) throws IOException
+    {
+        if (size > buffer.capacity())
+        {
+            map(Math.max((long) buffer.capacity() * 2, size));
+        }
+    }
+
+    protected byte[] getBytes(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            log.warning("Persistence: Error encoding undo journal string: " + e.getMessage());
+        }
+        return new byte[0];
+    }
+
+    protected File getBackupFile()
+    {
+        return new File(file.getPath() + BACKUP_EXTENSION);
+    }
+
+    protected File getCompactFile()
+    {
+        return new File(file.getPath() + COMPACT_EXTENSION);
+    }
+
+    // Returns a buffer positioned at a record's block count
+    protected ByteBuffer getBlocks(int offset)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + 4 + 1 + 8);
+        int ownerLength = record.getShort();
+        record.position(record.position() + ownerLength);
+        return record;
+    }
+
+    protected String getString(ByteBuffer record, int length)
+    {
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            log.warning("Persistence: Error decoding undo journal string: " + e.getMessage());
+        }
+        return "";
+    }
+
+    protected void map(long size) throws IOException
+    {
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Undo journal too large: " + file.getPath());
+        }
+        MappedByteBuffer previous = buffer;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (previous != null)
+        {
+            unmap(previous);
+        }
+    }
+
+    protected void open() throws IOException
+    {
+        fileAccess = new RandomAccessFile(file, "rw");
+        channel = fileAccess.getChannel();
+        map(Math.max(channel.size(), INITIAL_SIZE));
+
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION)
+        {
+            scan();
+        }
+        else
+        {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(HEADER_SIZE, 0);
+            end = HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Rename a complete copy of the journal over it.
+     * 
+     * Some platforms won't rename over an existing file, so the journal is
+     * moved aside first if needed. It is only deleted once the copy is in
+     * place- see the constructor for how an interrupted replace is finished.
+     * 
+     * @param compactFile
+     *            The complete copy
+     * @return false if the journal couldn't be replaced
+     */
+    protected boolean replace(File compactFile)
+    {
+        if (compactFile.renameTo(file))
+        {
+            return true;
+        }
+
+        File backupFile = getBackupFile();
+        deleteLeftover(backupFile);
+        if (!file.renameTo(backupFile))
+        {
+            return false;
+        }
+        if (!compactFile.renameTo(file))
+        {
+            if (!backupFile.renameTo(file))
+            {
+                log.warning("Persistence: Could not restore " + file.getPath() + " from " + backupFile.getPath());
+            }
+            return false;
+        }
+        deleteLeftover(backupFile);
+        return true;
+    }
+
+    protected void scan()
+    {
+        int capacity = buffer.capacity();
+        int position = HEADER_SIZE;
+        while (position + 4 <= capacity)
+        {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > capacity)
+            {
+                break;
+            }
+
+            if (buffer.get(position + 4) == LIVE)
+            {
+                ByteBuffer record = buffer.duplicate();
+                record.position(position + 5);
+                long batchId = record.getLong();
+                String owner = getString(record, record.getShort());
+                offsets.put(batchId, position);
+                owners.put(batchId, owner);
+            }
+            else
+            {
+                expiredBytes += 4 + length;
+            }
+            position += 4 + length;
+        }
+        end = position;
+    }
+
+    /**
+     * Release a mapped buffer right away, rather than when it is collected.
+     * 
+     * There's no public API for this, so it's done through the buffer's
+     * cleaner where the JVM has one. The buffer must not be used afterward.
+     * 
+     * @param mapped
+     *            The buffer to release
+     */
+    protected static void unmap(MappedByteBuffer mapped)
+    {
+        try
+        {
+            Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(mapped);
+            if (cleaner != null)
+            {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+        catch (Exception e)
+        {
+            // Not supported here- the mapping is released when the buffer is
+            // collected, and replace() copes if the journal can't be renamed
+        }
+    }
+}
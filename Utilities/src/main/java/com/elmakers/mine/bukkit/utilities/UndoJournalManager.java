@@ -0,0 +1,139 @@
+package com.elmakers.mine.bukkit.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+
+import com.elmakers.mine.bukkit.persistence.Persistence;
+
+/**
+ * Manages the undo journals for a plugin- one per world, kept in a single
+ * folder.
+ * 
+ * Existing journals are opened when this is created, so that UndoQueues can
+ * restore their history. Call close() when the plugin is disabled.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class UndoJournalManager
+{
+    protected static final String         JOURNAL_EXTENSION = ".undo";
+
+    private static final Logger           log               = Persistence.getLogger();
+
+    private final File                    folder;
+
+    private final Map<String, UndoJournal> journals          = new HashMap<String, UndoJournal>();
+
+    private long                          nextBatchId       = 1;
+
+    private final Server                  server;
+
+    public UndoJournalManager(Server server, File folder)
+    {
+        this.server = server;
+        this.folder = folder;
+
+        folder.mkdirs();
+        File[] files = folder.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        for (File file : files)
+        {
+            String fileName = file.getName();
+            if (fileName.endsWith(JOURNAL_EXTENSION))
+            {
+                open(file, fileName.substring(0, fileName.length() - JOURNAL_EXTENSION.length()));
+            }
+        }
+    }
+
+    public void close()
+    {
+        for (UndoJournal journal : journals.values())
+        {
+            journal.close();
+        }
+        journals.clear();
+    }
+
+    public void flush()
+    {
+        for (UndoJournal journal : journals.values())
+        {
+            journal.flush();
+        }
+    }
+
+    /**
+     * Get the journal for a world, creating it if necessary.
+     * 
+     * @param worldName
+     *            The name of the world
+     * @return The world's journal, or null if it couldn't be opened
+     */
+    public UndoJournal getJournal(String worldName)
+    {
+        UndoJournal journal = journals.get(worldName);
+        if (journal == null)
+        {
+            journal = open(new File(folder, worldName + JOURNAL_EXTENSION), worldName);
+        }
+        return journal;
+    }
+
+    public List<UndoJournal> getJournals()
+    {
+        return new ArrayList<UndoJournal>(journals.values());
+    }
+
+    /**
+     * Get the world a journal is for.
+     * 
+     * @param journal
+     *            The journal
+     * @return The world, or null if it isn't loaded
+     */
+    public World getWorld(UndoJournal journal)
+    {
+        return server.getWorld(journal.getWorldName());
+    }
+
+    /**
+     * Allocate an id for a new batch.
+     * 
+     * Ids are unique across all of this manager's journals.
+     * 
+     * @return A new batch id
+     */
+    public long nextBatchId()
+    {
+        return nextBatchId++;
+    }
+
+    protected UndoJournal open(File file, String worldName)
+    {
+        try
+        {
+            UndoJournal journal = new UndoJournal(file, worldName);
+            journals.put(worldName, journal);
+            nextBatchId = Math.max(nextBatchId, journal.getMaxBatchId() + 1);
+            return journal;
+        }
+        catch (IOException e)
+        {
+            log.warning("Persistence: Error opening undo journal " + file.getPath() + ": " + e.getMessage());
+        }
+        return null;
+    }
+}
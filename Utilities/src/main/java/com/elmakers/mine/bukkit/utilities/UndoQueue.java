@@ -1,23 +1,106 @@
 package com.elmakers.mine.bukkit.utilities;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
 
+import org.bukkit.World;
 import org.bukkit.block.Block;
 
+import com.elmakers.mine.bukkit.persistence.Persistence;
+import com.elmakers.mine.bukkit.persistence.dao.BlockData;
 import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+import com.elmakers.mine.bukkit.persistence.dao.LongHashSet;
+import com.elmakers.mine.bukkit.persistence.dao.WorldData;
 
-public class UndoQueue
+/**
+ * A queue of block changes that can be undone, most recent first.
+ * 
+ * Batches are indexed by the chunks their blocks are in, so that finding the
+ * last change to a specific block only needs to check the batches that
+ * touched its chunk. Batches shouldn't be changed once they're added.
+ * 
+ * A queue given a name and an UndoJournalManager also writes each batch to
+ * its world's undo journal. Only the most recent batches are then kept in
+ * memory (see setMaxLoaded)- older batches are read back in when needed, and
+ * the whole queue can be restored after a restart.
+ * 
+ * A queue given a BlockListTimer undoes and removes batches that have a
+ * time to live once they expire. These batches are kept in memory until
+ * then.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class UndoQueue implements BlockListTimerListener
 {
-    private final LinkedList<BlockList> blockQueue = new LinkedList<BlockList>();
-    private int                         maxSize    = 0;
+    private static final Logger                 log          = Persistence.getLogger();
+
+    private final List<UndoBatch>               blockQueue   = new ArrayList<UndoBatch>();
+
+    // Chunk key -> batches with blocks in that chunk, oldest first
+    private final Map<Long, List<UndoBatch>>    chunkIndex   = new HashMap<Long, List<UndoBatch>>();
+
+    private final UndoJournalManager            journals;
+
+    private int                                 maxLoaded    = 0;
+
+    private int                                 maxSize      = 0;
+
+    private final String                        name;
+
+    // Batches being timed, by their blocks
+    private final Map<BlockList, UndoBatch>     timedBatches = new IdentityHashMap<BlockList, UndoBatch>();
+
+    private BlockListTimer                      timer        = null;
+
+    public UndoQueue()
+    {
+        this(null, null);
+    }
+
+    /**
+     * Create a queue that keeps its history in undo journals.
+     * 
+     * @param name
+     *            A name for this queue, unique to the journals, such as a
+     *            player name
+     * @param journals
+     *            The journals to write to
+     */
+    public UndoQueue(String name, UndoJournalManager journals)
+    {
+        this.name = name;
+        this.journals = journals;
+    }
+
+    protected static long getChunkKey(int worldIndex, int chunkX, int chunkZ)
+    {
+        return (long) worldIndex << 58 | ((long) chunkX & 0x1FFFFFFF) << 29 | (long) chunkZ & 0x1FFFFFFF;
+    }
 
     public void add(BlockList blocks)
     {
         if (maxSize > 0 && blockQueue.size() > maxSize)
         {
-            blockQueue.removeFirst();
+            remove(blockQueue.get(0));
+        }
+
+        UndoBatch batch = new UndoBatch(blocks);
+        blockQueue.add(batch);
+        index(batch, getBlockIds(blocks));
+        write(batch);
+        if (timer != null && blocks.getTimeToLive() > 0)
+        {
+            timedBatches.put(blocks, batch);
+            timer.schedule(blocks, this);
         }
-        blockQueue.add(blocks);
+        pageOut();
     }
 
     public BlockList getLast()
@@ -26,24 +109,107 @@ public class UndoQueue
         {
             return null;
         }
-        return blockQueue.getLast();
+        return load(blockQueue.get(blockQueue.size() - 1));
     }
 
+    /**
+     * Find the most recent batch that changed a block.
+     * 
+     * @param target
+     *            The block to look for
+     * @return The last batch containing target, or null if none
+     */
     public BlockList getLast(Block target)
     {
+        UndoBatch batch = getLastBatch(target);
+        return batch == null ? null : batch.blocks;
+    }
 
-        if (blockQueue.size() == 0)
+    /**
+     * Undo and remove a batch whose time has run out.
+     * 
+     * If some of its blocks can't be restored yet, because their world or
+     * chunk isn't loaded, the batch is kept so that it can still be undone
+     * later.
+     * 
+     * @param blocks
+     *            The expired batch
+     */
+    public void onExpire(BlockList blocks)
+    {
+        UndoBatch batch = timedBatches.get(blocks);
+        if (batch == null || !blocks.undo())
         {
-            return null;
+            return;
+        }
+        remove(batch);
+    }
+
+    public void onRepeat(BlockList blocks)
+    {
+        // Only the last pass undoes a batch
+    }
+
+    /**
+     * Read this queue's history back from its journals.
+     * 
+     * This should be called once, before any batches are added.
+     */
+    public void restore()
+    {
+        if (journals == null)
+        {
+            return;
         }
-        for (BlockList blocks : blockQueue)
+
+        // Batch id -> the journals holding it, in batch order
+        TreeMap<Long, List<UndoJournal>> batches = new TreeMap<Long, List<UndoJournal>>();
+        for (UndoJournal journal : journals.getJournals())
         {
-            if (blocks.contains(target))
+            for (Long batchId : journal.getBatches(name))
+            {
+                List<UndoJournal> batchJournals = batches.get(batchId);
+                if (batchJournals == null)
+                {
+                    batchJournals = new ArrayList<UndoJournal>();
+                    batches.put(batchId, batchJournals);
+                }
+                batchJournals.add(journal);
+            }
+        }
+
+        for (Map.Entry<Long, List<UndoJournal>> entry : batches.entrySet())
+        {
+            UndoBatch batch = new UndoBatch(null);
+            batch.batchId = entry.getKey();
+            batch.journals = entry.getValue();
+            LongHashSet blockIds = new LongHashSet();
+            for (UndoJournal journal : batch.journals)
             {
-                return blocks;
+                int worldIndex = WorldData.getWorldIndex(journal.getWorldName());
+                for (long blockId : journal.getBlockIds(batch.batchId, worldIndex))
+                {
+                    blockIds.add(blockId);
+                }
             }
+            blockQueue.add(batch);
+            index(batch, blockIds.toArray());
         }
-        return null;
+        pageOut();
+    }
+
+    /**
+     * Set the number of recent batches to keep in memory.
+     * 
+     * This only applies to queues with undo journals.
+     * 
+     * @param maxLoaded
+     *            The number of batches, or 0 to keep all batches in memory
+     */
+    public void setMaxLoaded(int maxLoaded)
+    {
+        this.maxLoaded = maxLoaded;
+        pageOut();
     }
 
     public void setMaxSize(int size)
@@ -51,6 +217,19 @@ public class UndoQueue
         maxSize = size;
     }
 
+    /**
+     * Set the timer used to expire batches that have a time to live.
+     * 
+     * Only batches added after this is set are timed.
+     * 
+     * @param timer
+     *            The timer to use, or null to stop timing new batches
+     */
+    public void setTimer(BlockListTimer timer)
+    {
+        this.timer = timer;
+    }
+
     public boolean undo()
     {
         if (blockQueue.size() == 0)
@@ -58,27 +237,303 @@ public class UndoQueue
             return false;
         }
 
-        BlockList blocks = blockQueue.removeLast();
-        if (!blocks.undo())
+        UndoBatch batch = blockQueue.get(blockQueue.size() - 1);
+        BlockList blocks = load(batch);
+        if (blocks == null || !blocks.undo())
         {
-            blockQueue.add(blocks);
             return false;
         }
+        remove(batch);
         return true;
     }
 
+    /**
+     * Undo the last set of changes over several server ticks.
+     * 
+     * Blocks in unloaded chunks are restored once their chunks load.
+     * 
+     * @param scheduler
+     *            The scheduler to run the undo with
+     * @param listener
+     *            A listener for progress and completion, may be null
+     * @return The undo task, or null if there is nothing to undo, or the
+     *         last batch is in a world that isn't loaded
+     */
+    public UndoTask undo(BlockApplyScheduler scheduler,
+            BlockApplyListener listener)
+    {
+        if (blockQueue.size() == 0)
+        {
+            return null;
+        }
+
+        UndoBatch batch = blockQueue.get(blockQueue.size() - 1);
+        BlockList blocks = load(batch);
+        if (blocks == null)
+        {
+            return null;
+        }
+        UndoTask task = new UndoTask(blocks);
+        remove(batch);
+        task.setListener(listener);
+        scheduler.schedule(task);
+        return task;
+    }
+
+    /**
+     * Undo the last batch that changed a block.
+     * 
+     * The batch is only removed once all of its blocks have been restored.
+     * If some of them are in a world or chunk that isn't loaded, the rest are
+     * restored, and the batch is kept so that it can be undone again later.
+     * 
+     * @param target
+     *            The block to look for
+     * @return true if the batch was completely undone
+     */
     public boolean undo(Block target)
     {
-        BlockList lastActionOnTarget = getLast(target);
+        UndoBatch lastActionOnTarget = getLastBatch(target);
 
         if (lastActionOnTarget == null)
         {
             return false;
         }
 
-        blockQueue.remove(lastActionOnTarget);
-        lastActionOnTarget.undo();
+        BlockList blocks = load(lastActionOnTarget);
+        if (blocks == null || !blocks.undo())
+        {
+            return false;
+        }
+        remove(lastActionOnTarget);
 
         return true;
     }
+
+    protected long[] getBlockIds(BlockList blocks)
+    {
+        long[] blockIds = new long[blocks.size()];
+        for (int i = 0; i < blockIds.length; i++)
+        {
+            blockIds[i] = blocks.getBlockId(i);
+        }
+        return blockIds;
+    }
+
+    protected UndoBatch getLastBatch(Block target)
+    {
+        int worldIndex = WorldData.getWorldIndex(target.getWorld());
+        List<UndoBatch> batches = chunkIndex.get(getChunkKey(worldIndex, target.getX() >> 4, target.getZ() >> 4));
+        if (batches == null)
+        {
+            return null;
+        }
+
+        UndoBatch found = null;
+        for (int i = batches.size() - 1; i >= 0 && found == null; i--)
+        {
+            UndoBatch batch = batches.get(i);
+            BlockList blocks = load(batch);
+            if (blocks == null)
+            {
+                // Can't tell if this batch has the target- don't skip past it
+                // to an older one.
+                break;
+            }
+            if (blocks.contains(target))
+            {
+                found = batch;
+            }
+        }
+        pageOut(found);
+        return found;
+    }
+
+    protected void index(UndoBatch batch, long[] blockIds)
+    {
+        LongHashSet keys = new LongHashSet();
+        for (long blockId : blockIds)
+        {
+            keys.add(getChunkKey(BlockData.getWorldIndex(blockId), BlockData.getBlockX(blockId) >> 4, BlockData.getBlockZ(blockId) >> 4));
+        }
+
+        batch.chunkKeys = keys.toArray();
+        for (long chunkKey : batch.chunkKeys)
+        {
+            List<UndoBatch> batches = chunkIndex.get(chunkKey);
+            if (batches == null)
+            {
+                batches = new ArrayList<UndoBatch>();
+                chunkIndex.put(chunkKey, batches);
+            }
+            batches.add(batch);
+        }
+    }
+
+    /**
+     * Get a batch's blocks, reading them back in if the batch is paged out.
+     * 
+     * A batch is only read back in whole- undoing part of a batch, and then
+     * expiring it from its journals, would lose the rest of it for good.
+     * 
+     * @param batch
+     *            The batch to load
+     * @return The batch's blocks, or null if any of its worlds isn't loaded
+     */
+    protected BlockList load(UndoBatch batch)
+    {
+        if (batch.blocks != null)
+        {
+            return batch.blocks;
+        }
+
+        List<World> worlds = new ArrayList<World>();
+        for (UndoJournal journal : batch.journals)
+        {
+            World world = journals.getWorld(journal);
+            if (world == null)
+            {
+                return null;
+            }
+            worlds.add(world);
+        }
+
+        BlockList blocks = new BlockList();
+        for (int i = 0; i < worlds.size(); i++)
+        {
+            batch.journals.get(i).read(batch.batchId, worlds.get(i), blocks);
+        }
+        batch.blocks = blocks;
+        return blocks;
+    }
+
+    protected void pageOut()
+    {
+        pageOut(null);
+    }
+
+    /**
+     * Drop all but the most recent batches from memory.
+     * 
+     * @param keep
+     *            A batch to keep in memory, may be null
+     */
+    protected void pageOut(UndoBatch keep)
+    {
+        if (journals == null || maxLoaded <= 0)
+        {
+            return;
+        }
+
+        int loaded = 0;
+        for (int i = blockQueue.size() - 1; i >= 0; i--)
+        {
+            UndoBatch batch = blockQueue.get(i);
+            if (batch.blocks == null)
+            {
+                continue;
+            }
+            if (loaded < maxLoaded)
+            {
+                loaded++;
+            }
+            else if (batch != keep && batch.journals != null && !timedBatches.containsKey(batch.blocks))
+            {
+                batch.blocks = null;
+            }
+        }
+    }
+
+    protected void remove(UndoBatch batch)
+    {
+        blockQueue.remove(batch);
+        unindex(batch);
+        if (batch.blocks != null && timedBatches.remove(batch.blocks) != null && timer != null)
+        {
+            timer.cancel(batch.blocks);
+        }
+        if (batch.journals != null)
+        {
+            for (UndoJournal journal : batch.journals)
+            {
+                journal.expire(batch.batchId);
+            }
+        }
+    }
+
+    protected void unindex(UndoBatch batch)
+    {
+        for (long chunkKey : batch.chunkKeys)
+        {
+            List<UndoBatch> batches = chunkIndex.get(chunkKey);
+            if (batches == null)
+            {
+                continue;
+            }
+            batches.remove(batch);
+            if (batches.isEmpty())
+            {
+                chunkIndex.remove(chunkKey);
+            }
+        }
+    }
+
+    protected void write(UndoBatch batch)
+    {
+        if (journals == null)
+        {
+            return;
+        }
+
+        BlockList blocks = batch.blocks;
+        List<UndoJournal> batchJournals = new ArrayList<UndoJournal>();
+        LongHashSet worldIndices = new LongHashSet();
+        batch.batchId = journals.nextBatchId();
+        try
+        {
+            for (int i = 0; i < blocks.size(); i++)
+            {
+                int worldIndex = BlockData.getWorldIndex(blocks.getBlockId(i));
+                if (!worldIndices.add(worldIndex))
+                {
+                    continue;
+                }
+                UndoJournal journal = journals.getJournal(blocks.getWorld(i).getName());
+                if (journal != null && journal.append(batch.batchId, name, blocks, worldIndex))
+                {
+                    batchJournals.add(journal);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.warning("Persistence: Error writing to undo journal: " + e.getMessage());
+            for (UndoJournal journal : batchJournals)
+            {
+                journal.expire(batch.batchId);
+            }
+            return;
+        }
+        batch.journals = batchJournals;
+    }
+
+    /**
+     * A batch in the queue- its blocks are null while paged out.
+     */
+    protected static class UndoBatch
+    {
+        protected long              batchId;
+
+        protected BlockList         blocks;
+
+        protected long[]            chunkKeys;
+
+        // Null if this batch isn't in any journal
+        protected List<UndoJournal> journals = null;
+
+        public UndoBatch(BlockList blocks)
+        {
+            this.blocks = blocks;
+        }
+    }
 }
@@ -0,0 +1,54 @@
+package com.elmakers.mine.bukkit.utilities;
+
+import org.bukkit.World;
+
+import com.elmakers.mine.bukkit.persistence.dao.BlockData;
+import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+
+/**
+ * Restores the blocks in a BlockList, a few at a time.
+ * 
+ * The BlockList should not be changed while this task is running.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class UndoTask extends BlockApplyTask
+{
+    protected final BlockList blocks;
+
+    public UndoTask(BlockList blocks)
+    {
+        super(blocks.size());
+        this.blocks = blocks;
+    }
+
+    public BlockList getBlocks()
+    {
+        return blocks;
+    }
+
+    @Override
+    protected void apply(int index)
+    {
+        blocks.undo(index);
+    }
+
+    @Override
+    protected World getWorld(int index)
+    {
+        return blocks.getWorld(index);
+    }
+
+    @Override
+    protected int getX(int index)
+    {
+        return BlockData.getBlockX(blocks.getBlockId(index));
+    }
+
+    @Override
+    protected int getZ(int index)
+    {
+        return BlockData.getBlockZ(blocks.getBlockId(index));
+    }
+}